@@ -0,0 +1,87 @@
+package com.ctc.android.widget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The xml attributes of the areas of a map as one table: a dictionary of
+ * the distinct attribute names shared by all areas, and one value slot per
+ * area and name.  Equal values are stored once.  Immutable, shared by every
+ * view showing the map and built the first time an attribute is asked for
+ * (see MapModel).
+ */
+final class AreaAttributes
+{
+	final String[] mKeys;
+	private final HashMap<String, Integer> mKeyIndex;
+	// value of key k for row r at (r * mKeys.length) + k, null if not set
+	final String[] mValues;
+
+	private AreaAttributes(String[] keys, HashMap<String, Integer> keyIndex, String[] values)
+	{
+		mKeys = keys;
+		mKeyIndex = keyIndex;
+		mValues = values;
+	}
+
+	/**
+	 * @return the value of key for the area in row, null if it has none
+	 */
+	String get(int row, String key)
+	{
+		Integer k = mKeyIndex.get(key);
+		int slot = k != null ? (row * mKeys.length) + k : -1;
+		// fewer rows if the xml could not be read again
+		return (slot >= 0) && (slot < mValues.length) ? mValues[slot] : null;
+	}
+
+	/**
+	 * build the table
+	 * @param rows - attributes of each area as key, value, key, value...
+	 * @param pool - strings already in use, equal keys and values are
+	 *               replaced by the instance in the pool
+	 */
+	static AreaAttributes build(ArrayList<String[]> rows, HashMap<String, String> pool)
+	{
+		HashMap<String, Integer> keyIndex = new HashMap<String, Integer>();
+		ArrayList<String> keys = new ArrayList<String>();
+		for (String[] row : rows)
+		{
+			for (int i = 0; i < row.length; i += 2)
+			{
+				if (!keyIndex.containsKey(row[i]))
+				{
+					keyIndex.put(row[i], keys.size());
+					keys.add(intern(pool, row[i]));
+				}
+			}
+		}
+
+		int keyCount = keys.size();
+		String[] values = new String[rows.size() * keyCount];
+		for (int r = 0; r < rows.size(); r++)
+		{
+			String[] row = rows.get(r);
+			for (int i = 0; i < row.length; i += 2)
+			{
+				values[(r * keyCount) + keyIndex.get(row[i])] = intern(pool, row[i + 1]);
+			}
+		}
+		return new AreaAttributes(keys.toArray(new String[keyCount]), keyIndex, values);
+	}
+
+	static String intern(HashMap<String, String> pool, String s)
+	{
+		if (s == null)
+		{
+			return null;
+		}
+		String pooled = pool.get(s);
+		if (pooled == null)
+		{
+			pool.put(s, s);
+			pooled = s;
+		}
+		return pooled;
+	}
+}
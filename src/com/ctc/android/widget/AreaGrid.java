@@ -0,0 +1,235 @@
+package com.ctc.android.widget;
+
+/**
+ * Uniform grid over the image for finding the area under a point without
+ * testing every area.
+ *
+ * Each area is listed in every cell its bounding box overlaps.  Adding,
+ * removing or moving an area only touches the cells it covers, and a move
+ * that stays within the same cells touches none, so the grid is built once
+ * and kept up to date as areas change.  Areas outside the extent the grid
+ * was built for are listed in the border cells, which keeps lookups correct.
+ */
+final class AreaGrid
+{
+	// cells per side at most
+	private static final int MAX_SIDE = 64;
+
+	private final AreaStore mAreas;
+
+	// extent and cell size in image coordinates
+	private float mLeft;
+	private float mTop;
+	private float mCellWidth;
+	private float mCellHeight;
+	private int mColumns;
+	private int mRows;
+
+	// area positions listed in each cell, the first mCellCount[c] are used
+	private int[][] mCells;
+	private int[] mCellCount;
+	// cells covered by each area as first column, first row, last column,
+	// last row; first column -1 if the area is not listed
+	private int[] mRange = new int[0];
+
+	AreaGrid(AreaStore areas)
+	{
+		mAreas = areas;
+		build();
+	}
+
+	/**
+	 * lay the grid out over the current areas and list them
+	 */
+	private void build()
+	{
+		AreaStore areas = mAreas;
+		int count = areas.size();
+		float left = Float.MAX_VALUE;
+		float top = Float.MAX_VALUE;
+		float right = -Float.MAX_VALUE;
+		float bottom = -Float.MAX_VALUE;
+		int live = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (!areas.isRemoved(i))
+			{
+				int b = i * 4;
+				left = Math.min(left, areas.mBounds[b]);
+				top = Math.min(top, areas.mBounds[b + 1]);
+				right = Math.max(right, areas.mBounds[b + 2]);
+				bottom = Math.max(bottom, areas.mBounds[b + 3]);
+				live++;
+			}
+		}
+		if (live == 0)
+		{
+			left = top = 0;
+			right = bottom = 1;
+		}
+
+		// about one area per cell for evenly spread areas
+		int side = Math.max(1, Math.min(MAX_SIDE, (int) Math.sqrt(live)));
+		mLeft = left;
+		mTop = top;
+		mColumns = side;
+		mRows = side;
+		mCellWidth = Math.max(1f, (right - left) / side);
+		mCellHeight = Math.max(1f, (bottom - top) / side);
+		mCells = new int[side * side][];
+		mCellCount = new int[side * side];
+		mRange = new int[Math.max(16, count) * 4];
+		for (int i = 0; i < count; i++)
+		{
+			mRange[i * 4] = -1;
+			if (!areas.isRemoved(i))
+			{
+				add(i);
+			}
+		}
+	}
+
+	/**
+	 * list a new area
+	 */
+	void add(int index)
+	{
+		if (mRange.length < (index + 1) * 4)
+		{
+			int[] range = new int[Math.max((index + 1) * 4, mRange.length * 2)];
+			System.arraycopy(mRange, 0, range, 0, mRange.length);
+			for (int r = mRange.length; r < range.length; r += 4)
+			{
+				range[r] = -1;
+			}
+			mRange = range;
+		}
+		int r = index * 4;
+		int b = index * 4;
+		float[] bounds = mAreas.mBounds;
+		mRange[r] = column(bounds[b]);
+		mRange[r + 1] = row(bounds[b + 1]);
+		mRange[r + 2] = column(bounds[b + 2]);
+		mRange[r + 3] = row(bounds[b + 3]);
+		for (int y = mRange[r + 1]; y <= mRange[r + 3]; y++)
+		{
+			for (int x = mRange[r]; x <= mRange[r + 2]; x++)
+			{
+				insert((y * mColumns) + x, index);
+			}
+		}
+	}
+
+	/**
+	 * unlist an area, before it is removed from the store
+	 */
+	void remove(int index)
+	{
+		int r = index * 4;
+		if (r >= mRange.length || mRange[r] < 0)
+		{
+			return;
+		}
+		for (int y = mRange[r + 1]; y <= mRange[r + 3]; y++)
+		{
+			for (int x = mRange[r]; x <= mRange[r + 2]; x++)
+			{
+				delete((y * mColumns) + x, index);
+			}
+		}
+		mRange[r] = -1;
+	}
+
+	/**
+	 * the bounds of an area changed
+	 */
+	void update(int index)
+	{
+		int r = index * 4;
+		int b = index * 4;
+		float[] bounds = mAreas.mBounds;
+		if (r < mRange.length && mRange[r] >= 0
+			&& mRange[r] == column(bounds[b]) && mRange[r + 1] == row(bounds[b + 1])
+			&& mRange[r + 2] == column(bounds[b + 2]) && mRange[r + 3] == row(bounds[b + 3]))
+		{
+			// still in the same cells
+			return;
+		}
+		remove(index);
+		add(index);
+	}
+
+	/**
+	 * @return the position of the area containing x, y (image coordinates),
+	 *         the first one added if areas overlap, -1 if none
+	 */
+	int hitTest(float x, float y)
+	{
+		return hitTest(x, y, null, -1);
+	}
+
+	/**
+	 * as hitTest(x, y), testing poly areas against the outlines of lod at
+	 * level first
+	 */
+	int hitTest(float x, float y, AreaLod lod, int level)
+	{
+		int cell = (row(y) * mColumns) + column(x);
+		int[] list = mCells[cell];
+		int hit = -1;
+		for (int k = 0; k < mCellCount[cell]; k++)
+		{
+			int i = list[k];
+			if ((hit < 0 || mAreas.isBefore(i, hit))
+				&& (lod != null ? lod.isInArea(i, level, x, y) : mAreas.isInArea(i, x, y)))
+			{
+				hit = i;
+			}
+		}
+		return hit;
+	}
+
+	private void insert(int cell, int index)
+	{
+		int[] list = mCells[cell];
+		int n = mCellCount[cell];
+		if (list == null || list.length == n)
+		{
+			int[] grown = new int[Math.max(4, n * 2)];
+			if (list != null)
+			{
+				System.arraycopy(list, 0, grown, 0, n);
+			}
+			list = grown;
+			mCells[cell] = list;
+		}
+		list[n] = index;
+		mCellCount[cell] = n + 1;
+	}
+
+	private void delete(int cell, int index)
+	{
+		int[] list = mCells[cell];
+		int n = mCellCount[cell];
+		for (int k = 0; k < n; k++)
+		{
+			if (list[k] == index)
+			{
+				// order within a cell does not matter
+				list[k] = list[n - 1];
+				mCellCount[cell] = n - 1;
+				return;
+			}
+		}
+	}
+
+	private int column(float x)
+	{
+		return Math.max(0, Math.min(mColumns - 1, (int) Math.floor((x - mLeft) / mCellWidth)));
+	}
+
+	private int row(float y)
+	{
+		return Math.max(0, Math.min(mRows - 1, (int) Math.floor((y - mTop) / mCellHeight)));
+	}
+}
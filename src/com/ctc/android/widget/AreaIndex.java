@@ -0,0 +1,214 @@
+package com.ctc.android.widget;
+
+import java.util.Locale;
+
+/**
+ * Sorted index from a string key (an area name or attribute value) to
+ * area ids, for exact and prefix lookups by binary search.  Keys are
+ * compared ignoring case.  Entries are kept in two parallel arrays sorted
+ * by key, then id, so adding or removing one entry only shifts the tail.
+ */
+final class AreaIndex
+{
+	private String[] mKeys = new String[16];
+	private int[] mIds = new int[16];
+	private int mCount;
+
+	static String normalize(String key)
+	{
+		return key.toLowerCase(Locale.US);
+	}
+
+	int size()
+	{
+		return mCount;
+	}
+
+	/**
+	 * replace the contents, for building an index in one go
+	 * @param keys - keys, null entries are skipped
+	 * @param ids - area id of each key
+	 * @param count
+	 */
+	void build(String[] keys, int[] ids, int count)
+	{
+		mKeys = new String[Math.max(16, count)];
+		mIds = new int[Math.max(16, count)];
+		mCount = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (keys[i] != null)
+			{
+				mKeys[mCount] = normalize(keys[i]);
+				mIds[mCount] = ids[i];
+				mCount++;
+			}
+		}
+		sort(0, mCount, new String[mCount], new int[mCount]);
+	}
+
+	void add(String key, int id)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		key = normalize(key);
+		if (mCount == mKeys.length)
+		{
+			String[] keys = new String[mCount * 2];
+			int[] ids = new int[mCount * 2];
+			System.arraycopy(mKeys, 0, keys, 0, mCount);
+			System.arraycopy(mIds, 0, ids, 0, mCount);
+			mKeys = keys;
+			mIds = ids;
+		}
+		int i = search(key, id);
+		System.arraycopy(mKeys, i, mKeys, i + 1, mCount - i);
+		System.arraycopy(mIds, i, mIds, i + 1, mCount - i);
+		mKeys[i] = key;
+		mIds[i] = id;
+		mCount++;
+	}
+
+	void remove(String key, int id)
+	{
+		if (key == null)
+		{
+			return;
+		}
+		key = normalize(key);
+		int i = search(key, id);
+		if ((i < mCount) && (mIds[i] == id) && mKeys[i].equals(key))
+		{
+			mCount--;
+			System.arraycopy(mKeys, i + 1, mKeys, i, mCount - i);
+			System.arraycopy(mIds, i + 1, mIds, i, mCount - i);
+			mKeys[mCount] = null;
+		}
+	}
+
+	/**
+	 * @return ids of the areas whose key equals key
+	 */
+	int[] find(String key)
+	{
+		key = normalize(key);
+		int from = lowerBound(key);
+		int to = from;
+		while ((to < mCount) && mKeys[to].equals(key))
+		{
+			to++;
+		}
+		return copyIds(from, to);
+	}
+
+	/**
+	 * @return ids of at most limit areas whose key starts with prefix, in
+	 *         key order
+	 */
+	int[] findPrefix(String prefix, int limit)
+	{
+		prefix = normalize(prefix);
+		int from = lowerBound(prefix);
+		int to = from;
+		while ((to < mCount) && (to - from < limit) && mKeys[to].startsWith(prefix))
+		{
+			to++;
+		}
+		return copyIds(from, to);
+	}
+
+	private int[] copyIds(int from, int to)
+	{
+		int[] ids = new int[to - from];
+		System.arraycopy(mIds, from, ids, 0, to - from);
+		return ids;
+	}
+
+	/*
+	 * first entry not less than key
+	 */
+	private int lowerBound(String key)
+	{
+		int lo = 0;
+		int hi = mCount;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (mKeys[mid].compareTo(key) < 0)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/*
+	 * first entry not less than (key, id)
+	 */
+	private int search(String key, int id)
+	{
+		int lo = 0;
+		int hi = mCount;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (compare(mKeys[mid], mIds[mid], key, id) < 0)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static int compare(String key1, int id1, String key2, int id2)
+	{
+		int c = key1.compareTo(key2);
+		if (c == 0)
+		{
+			c = (id1 < id2) ? -1 : ((id1 == id2) ? 0 : 1);
+		}
+		return c;
+	}
+
+	/*
+	 * merge sort of the entries from..to on the parallel arrays
+	 */
+	private void sort(int from, int to, String[] tmpKeys, int[] tmpIds)
+	{
+		if (to - from < 2)
+		{
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sort(from, mid, tmpKeys, tmpIds);
+		sort(mid, to, tmpKeys, tmpIds);
+		int a = from;
+		int b = mid;
+		int o = from;
+		while ((a < mid) || (b < to))
+		{
+			if ((b >= to) || ((a < mid) && (compare(mKeys[a], mIds[a], mKeys[b], mIds[b]) <= 0)))
+			{
+				tmpKeys[o] = mKeys[a];
+				tmpIds[o++] = mIds[a++];
+			}
+			else
+			{
+				tmpKeys[o] = mKeys[b];
+				tmpIds[o++] = mIds[b++];
+			}
+		}
+		System.arraycopy(tmpKeys, from, mKeys, from, to - from);
+		System.arraycopy(tmpIds, from, mIds, from, to - from);
+	}
+}
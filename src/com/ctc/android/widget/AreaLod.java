@@ -0,0 +1,275 @@
+package com.ctc.android.widget;
+
+import android.graphics.Path;
+
+/**
+ * Simplified outlines of the poly areas of an AreaStore for drawing and hit
+ * testing while zoomed out.
+ *
+ * Level l is the outline simplified with Douglas-Peucker at a tolerance of
+ * 2^l image pixels, computed for an area the first time that level is asked
+ * for.  levelFor picks the coarsest level whose error stays below half a
+ * screen pixel at the current zoom, so the simplified outline draws the
+ * same as the full one.
+ *
+ * Every point of the full outline is within the tolerance of the simplified
+ * one, so a point farther than that from the simplified outline is inside
+ * both or outside both.  isInArea only falls back to the full outline for
+ * points closer than that.
+ */
+final class AreaLod
+{
+	static final int LEVELS = 5;
+
+	private final AreaStore mAreas;
+	// simplified points of area i at level l in mPoints[(i * LEVELS) + l],
+	// null until asked for
+	private float[][] mPoints = new float[0][];
+
+	// scratch for simplify
+	private boolean[] mKeep = new boolean[0];
+	private int[] mStack = new int[0];
+
+	AreaLod(AreaStore areas)
+	{
+		mAreas = areas;
+	}
+
+	/**
+	 * @param scale - screen pixels per image pixel
+	 * @return the level to draw at, -1 for the full outlines
+	 */
+	static int levelFor(float scale)
+	{
+		if (scale <= 0)
+		{
+			return -1;
+		}
+		float tolerance = 0.5f / scale;
+		int level = -1;
+		while ((level + 1 < LEVELS) && ((1 << (level + 1)) <= tolerance))
+		{
+			level++;
+		}
+		return level;
+	}
+
+	static float getTolerance(int level)
+	{
+		return 1 << level;
+	}
+
+	/**
+	 * the area at index changed or was removed
+	 */
+	void invalidate(int index)
+	{
+		int first = index * LEVELS;
+		if (first < mPoints.length)
+		{
+			for (int l = 0; l < LEVELS; l++)
+			{
+				mPoints[first + l] = null;
+			}
+		}
+	}
+
+	void clear()
+	{
+		mPoints = new float[0][];
+	}
+
+	int getVertexCount(int index, int level)
+	{
+		if (level < 0 || mAreas.mShapes[index] != AreaStore.SHAPE_POLY)
+		{
+			return mAreas.getVertexCount(index);
+		}
+		return getPoints(index, level).length / 2;
+	}
+
+	/**
+	 * outline of the area at level in image coordinates
+	 */
+	Path buildPath(int index, int level)
+	{
+		if (level < 0 || mAreas.mShapes[index] != AreaStore.SHAPE_POLY)
+		{
+			return mAreas.buildPath(index);
+		}
+		float[] c = getPoints(index, level);
+		Path path = new Path();
+		path.incReserve(c.length / 2);
+		path.moveTo(c[0], c[1]);
+		for (int p = 2; p < c.length; p += 2)
+		{
+			path.lineTo(c[p], c[p + 1]);
+		}
+		path.close();
+		return path;
+	}
+
+	/**
+	 * hit test against the simplified outline of level, and against the
+	 * full one if x, y is within the tolerance of the simplified outline
+	 */
+	boolean isInArea(int index, int level, float x, float y)
+	{
+		AreaStore areas = mAreas;
+		if (level < 0 || areas.mShapes[index] != AreaStore.SHAPE_POLY)
+		{
+			return areas.isInArea(index, x, y);
+		}
+		int b = index * 4;
+		if ((x < areas.mBounds[b]) || (x > areas.mBounds[b + 2]) || (y < areas.mBounds[b + 1]) || (y > areas.mBounds[b + 3]))
+		{
+			return false;
+		}
+		float[] c = getPoints(index, level);
+		float tolerance = getTolerance(level);
+		float tolerance2 = tolerance * tolerance;
+		boolean inside = false;
+		for (int p = 0, q = c.length - 2; p < c.length; q = p, p += 2)
+		{
+			if (distance2(x, y, c[q], c[q + 1], c[p], c[p + 1]) <= tolerance2)
+			{
+				// too close to tell, ask the full outline
+				return areas.isInArea(index, x, y);
+			}
+			// same test as AreaStore.isInArea
+			if (((c[p + 1] > y) != (c[q + 1] > y))
+				&& (x < (c[q] - c[p]) * (y - c[p + 1]) / (c[q + 1] - c[p + 1]) + c[p]))
+			{
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	private float[] getPoints(int index, int level)
+	{
+		int slot = (index * LEVELS) + level;
+		if (slot >= mPoints.length)
+		{
+			float[][] points = new float[Math.max(slot + 1, mPoints.length * 2)][];
+			System.arraycopy(mPoints, 0, points, 0, mPoints.length);
+			mPoints = points;
+		}
+		float[] c = mPoints[slot];
+		if (c == null)
+		{
+			c = simplify(index, getTolerance(level));
+			mPoints[slot] = c;
+		}
+		return c;
+	}
+
+	/*
+	 * Douglas-Peucker on the closed outline: split it at the first point
+	 * and the point farthest from it, then keep the farthest point of each
+	 * part from its chord while that is beyond the tolerance
+	 */
+	private float[] simplify(int index, float tolerance)
+	{
+		float[] c = mAreas.mCoords;
+		int start = mAreas.mCoordStart[index];
+		int n = mAreas.mCoordLength[index] / 2;
+		if (n <= 3)
+		{
+			float[] points = new float[n * 2];
+			System.arraycopy(c, start, points, 0, n * 2);
+			return points;
+		}
+		if (mKeep.length < n)
+		{
+			mKeep = new boolean[n];
+			mStack = new int[n * 2];
+		}
+		boolean[] keep = mKeep;
+		for (int k = 0; k < n; k++)
+		{
+			keep[k] = false;
+		}
+
+		int far = 0;
+		float farthest = -1;
+		for (int k = 1; k < n; k++)
+		{
+			float dx = c[start + (k * 2)] - c[start];
+			float dy = c[start + (k * 2) + 1] - c[start + 1];
+			float d = (dx * dx) + (dy * dy);
+			if (d > farthest)
+			{
+				farthest = d;
+				far = k;
+			}
+		}
+		keep[0] = true;
+		keep[far] = true;
+
+		// parts as (from, to) point numbers, to == n is point 0 again
+		float tolerance2 = tolerance * tolerance;
+		int[] stack = mStack;
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = far;
+		stack[top++] = far;
+		stack[top++] = n;
+		int kept = 2;
+		while (top > 0)
+		{
+			int to = stack[--top];
+			int from = stack[--top];
+			int a = start + (from * 2);
+			int e = start + ((to % n) * 2);
+			int split = -1;
+			float max = tolerance2;
+			for (int k = from + 1; k < to; k++)
+			{
+				int p = start + (k * 2);
+				float d = distance2(c[p], c[p + 1], c[a], c[a + 1], c[e], c[e + 1]);
+				if (d > max)
+				{
+					max = d;
+					split = k;
+				}
+			}
+			if (split >= 0)
+			{
+				keep[split] = true;
+				kept++;
+				stack[top++] = from;
+				stack[top++] = split;
+				stack[top++] = split;
+				stack[top++] = to;
+			}
+		}
+
+		float[] points = new float[kept * 2];
+		int o = 0;
+		for (int k = 0; k < n; k++)
+		{
+			if (keep[k])
+			{
+				points[o++] = c[start + (k * 2)];
+				points[o++] = c[start + (k * 2) + 1];
+			}
+		}
+		return points;
+	}
+
+	/*
+	 * squared distance from x, y to the segment x1, y1 - x2, y2
+	 */
+	private static float distance2(float x, float y, float x1, float y1, float x2, float y2)
+	{
+		float dx = x2 - x1;
+		float dy = y2 - y1;
+		float length2 = (dx * dx) + (dy * dy);
+		float t = length2 > 0 ? (((x - x1) * dx) + ((y - y1) * dy)) / length2 : 0;
+		t = Math.max(0, Math.min(1, t));
+		float px = x1 + (t * dx) - x;
+		float py = y1 + (t * dy) - y;
+		return (px * px) + (py * py);
+	}
+}
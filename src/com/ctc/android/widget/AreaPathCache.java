@@ -0,0 +1,53 @@
+package com.ctc.android.widget;
+
+import android.graphics.Path;
+import android.support.v4.util.LruCache;
+
+/**
+ * LRU cache of area outlines as Paths in image coordinates, keyed by
+ * position in the AreaStore so that no Area objects are needed to draw.
+ *
+ * A Path is built from the area geometry the first time it is needed and is
+ * independent of zoom and scroll, which are applied on the canvas when
+ * drawing.  The cache is sized in estimated bytes so that large polygons
+ * count for more than rectangles, and can be trimmed when memory runs low.
+ * Poly outlines are built at the AreaLod level set by setLevel, changing the
+ * level drops the cached paths.
+ */
+class AreaPathCache extends LruCache<Integer, Path>
+{
+	// rough native cost of a Path, per vertex and per object
+	private static final int BYTES_PER_VERTEX = 16;
+	private static final int BYTES_PER_PATH = 64;
+
+	private final AreaLod mLod;
+	private int mLevel = -1;
+
+	AreaPathCache(int maxBytes, AreaLod lod)
+	{
+		super(maxBytes);
+		mLod = lod;
+	}
+
+	void setLevel(int level)
+	{
+		if (level != mLevel)
+		{
+			// evict while sizeOf still matches the cached paths
+			evictAll();
+			mLevel = level;
+		}
+	}
+
+	@Override
+	protected Path create(Integer index)
+	{
+		return mLod.buildPath(index, mLevel);
+	}
+
+	@Override
+	protected int sizeOf(Integer index, Path path)
+	{
+		return BYTES_PER_PATH + (mLod.getVertexCount(index, mLevel) * BYTES_PER_VERTEX);
+	}
+}
@@ -0,0 +1,106 @@
+package com.ctc.android.widget;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+
+/**
+ * The outline of every area of a store as a Path in image coordinates, at
+ * one AreaLod level at a time, built the first time an area is drawn.
+ * Unlike AreaPathCache nothing is evicted: it is for drawing all visible
+ * areas every frame, the vector map and the layers.
+ */
+final class AreaPaths
+{
+	private final AreaStore mAreas;
+	private final AreaLod mLod;
+	private Path[] mPaths = new Path[0];
+	private int mLevel = -1;
+
+	AreaPaths(AreaStore areas, AreaLod lod)
+	{
+		mAreas = areas;
+		mLod = lod;
+	}
+
+	/**
+	 * @return true if the bounding box of the area at index intersects
+	 *         rect, both in image coordinates
+	 */
+	static boolean intersects(AreaStore areas, int index, RectF rect)
+	{
+		int b = index * 4;
+		float[] bounds = areas.mBounds;
+		return (bounds[b + 2] >= rect.left) && (bounds[b] <= rect.right)
+			&& (bounds[b + 3] >= rect.top) && (bounds[b + 1] <= rect.bottom);
+	}
+
+	/**
+	 * the outline of the area at index changed or is gone
+	 */
+	void invalidate(int index)
+	{
+		if (index < mPaths.length)
+		{
+			mPaths[index] = null;
+		}
+	}
+
+	void clear()
+	{
+		mPaths = new Path[0];
+	}
+
+	/**
+	 * fill and outline the areas within view in the order they were
+	 * added, on a canvas in image coordinates
+	 * @param view - visible part of the image
+	 * @param level - AreaLod level to draw at
+	 * @param fill - null for no fill
+	 * @param stroke - null for no outline
+	 * @return the number of areas drawn
+	 */
+	int draw(Canvas canvas, RectF view, int level, Paint fill, Paint stroke)
+	{
+		AreaStore areas = mAreas;
+		int count = areas.size();
+		if (level != mLevel)
+		{
+			mPaths = new Path[count];
+			mLevel = level;
+		}
+		else if (mPaths.length < count)
+		{
+			Path[] paths = new Path[Math.max(count, mPaths.length * 2)];
+			System.arraycopy(mPaths, 0, paths, 0, mPaths.length);
+			mPaths = paths;
+		}
+		int drawn = 0;
+		int[] order = areas.drawOrder();
+		for (int k = 0; k < count; k++)
+		{
+			int i = order != null ? order[k] : k;
+			if (areas.isRemoved(i) || !intersects(areas, i, view))
+			{
+				continue;
+			}
+			Path path = mPaths[i];
+			if (path == null)
+			{
+				path = mLod.buildPath(i, level);
+				mPaths[i] = path;
+			}
+			if (fill != null)
+			{
+				canvas.drawPath(path, fill);
+			}
+			if (stroke != null)
+			{
+				canvas.drawPath(path, stroke);
+			}
+			drawn++;
+		}
+		return drawn;
+	}
+}
@@ -0,0 +1,133 @@
+package com.ctc.android.widget;
+
+import android.graphics.RectF;
+
+/**
+ * An immutable, versioned copy of the areas of an ImageMap, for reading
+ * them on any thread without locking.  See ImageMap.getAreaSnapshot.
+ *
+ * The view publishes a new snapshot at most once per frame after its areas
+ * changed.  A snapshot never changes; compare versions to find out whether
+ * a newer one is available.
+ */
+public final class AreaSnapshot
+{
+	private final AreaStore mAreas;
+	private final int mVersion;
+	// built on the first hit test, an equal grid built twice by racing
+	// threads does no harm
+	private volatile AreaGrid mGrid;
+
+	AreaSnapshot(AreaStore areas, int version)
+	{
+		mAreas = areas;
+		mVersion = version;
+	}
+
+	/**
+	 * @return the version, higher for newer snapshots of the same view
+	 */
+	public int getVersion()
+	{
+		return mVersion;
+	}
+
+	public int getAreaCount()
+	{
+		return mAreas.size() - mAreas.mFreeCount;
+	}
+
+	/**
+	 * @return the ids of all areas
+	 */
+	public int[] getAreaIds()
+	{
+		int[] ids = new int[getAreaCount()];
+		int n = 0;
+		for (int i = 0; i < mAreas.size(); i++)
+		{
+			if (!mAreas.isRemoved(i))
+			{
+				ids[n++] = mAreas.mIds[i];
+			}
+		}
+		return ids;
+	}
+
+	public boolean hasArea(int areaId)
+	{
+		return mAreas.indexOfId(areaId) >= 0;
+	}
+
+	public String getName(int areaId)
+	{
+		int index = mAreas.indexOfId(areaId);
+		return index >= 0 ? mAreas.mNames[index] : null;
+	}
+
+	public String getAttribute(int areaId, String key)
+	{
+		int index = mAreas.indexOfId(areaId);
+		return index >= 0 ? mAreas.getValue(index, key) : null;
+	}
+
+	/**
+	 * @param out - set to the bounding box of the area in image coordinates
+	 * @return false if there is no such area
+	 */
+	public boolean getBounds(int areaId, RectF out)
+	{
+		int index = mAreas.indexOfId(areaId);
+		if (index < 0)
+		{
+			return false;
+		}
+		mAreas.getBounds(index, out);
+		return true;
+	}
+
+	/**
+	 * @return the id of the area containing x, y in image coordinates, 0 if
+	 *         none
+	 */
+	public int hitTest(float x, float y)
+	{
+		AreaGrid grid = mGrid;
+		if (grid == null)
+		{
+			grid = new AreaGrid(mAreas);
+			mGrid = grid;
+		}
+		int index = grid.hitTest(x, y);
+		return index >= 0 ? mAreas.mIds[index] : 0;
+	}
+
+	/**
+	 * @return the ids of the areas whose bounding box intersects rect, in
+	 *         image coordinates
+	 */
+	public int[] findAreasIn(RectF rect)
+	{
+		float[] bounds = mAreas.mBounds;
+		int[] ids = new int[16];
+		int n = 0;
+		for (int i = 0; i < mAreas.size(); i++)
+		{
+			int b = i * 4;
+			if (!mAreas.isRemoved(i) && (bounds[b] <= rect.right) && (bounds[b + 2] >= rect.left)
+				&& (bounds[b + 1] <= rect.bottom) && (bounds[b + 3] >= rect.top))
+			{
+				if (n == ids.length)
+				{
+					int[] grown = new int[n * 2];
+					System.arraycopy(ids, 0, grown, 0, n);
+					ids = grown;
+				}
+				ids[n++] = mAreas.mIds[i];
+			}
+		}
+		int[] result = new int[n];
+		System.arraycopy(ids, 0, result, 0, n);
+		return result;
+	}
+}
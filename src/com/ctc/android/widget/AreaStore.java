@@ -0,0 +1,992 @@
+package com.ctc.android.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.HashMap;
+
+/**
+ * All areas of a map in parallel primitive arrays, indexed by area
+ * position.  ImageMap.Area objects are flyweights over an index into this
+ * store, created only when asked for, so a map costs a few arrays instead
+ * of several objects per area.
+ *
+ * The coordinates of every area are kept in one shared buffer, area i
+ * owning mCoordLength[i] values from mCoords[mCoordStart[i]]:
+ *  rect   - left, top, right, bottom
+ *  circle - x, y, radius
+ *  poly   - x0, y0, x1, y1, ...
+ *
+ * Areas can be removed, moved and reshaped at run time.  A removed area
+ * leaves its position empty (SHAPE_NONE) until the next add reuses it, so
+ * the positions of the other areas and the per-position tables built on
+ * them stay valid.  Coordinates that are no longer used stay in the buffer
+ * until it fills up and is compacted.
+ *
+ * Overlapping areas are hit tested and drawn in the order they were added,
+ * not by position, as a reused position would otherwise put a new area
+ * before older ones: isBefore compares two areas and drawOrder lists the
+ * positions in that order.
+ *
+ * snapshot() returns an immutable copy for other threads.  It shares the
+ * arrays of this store, which copies an array only before it first writes
+ * to it, so moving an area copies the coordinate, bounds and origin
+ * columns but not the others.  The value maps set with addValue are never
+ * changed once stored and are shared rather than copied.
+ */
+final class AreaStore
+{
+	static final byte SHAPE_RECT = 0;
+	static final byte SHAPE_CIRCLE = 1;
+	static final byte SHAPE_POLY = 2;
+	// an empty position, left by a removed area
+	static final byte SHAPE_NONE = -1;
+
+	// shape attribute of each shape type
+	private static final String[] SHAPE_NAMES = { "rect", "circle", "poly" };
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	int mCount;
+	int[] mIds;
+	byte[] mShapes;
+	String[] mNames;
+	// left, top, right, bottom of each area
+	float[] mBounds;
+	// focal point of each area, x, y
+	float[] mOrigins;
+	int[] mCoordStart;
+	int[] mCoordLength;
+	float[] mCoords;
+	// end of the used part of mCoords, and how much of it belongs to no
+	// area any more
+	int mCoordEnd;
+	int mCoordGarbage;
+
+	// positions of removed areas, reused by add
+	int[] mFree;
+	int mFreeCount;
+
+	// when each area was added, counting up from 0
+	int[] mSequence;
+	int mNextSequence;
+	// every position in the order its area was added, null as long as
+	// that is position order, i.e. until a position is reused
+	int[] mOrder;
+
+	// area ids to positions
+	SparseIntArray mIndexOfId;
+
+	// decorations, allocated with the first one
+	Bitmap[] mDecorations;
+	// a decoration load is queued or running
+	boolean[] mDecorationRequested;
+
+	// xml attributes of the areas: the map model that holds them and the
+	// row of each area in its table, -1 for none.  Once the geometry of an
+	// area is changed its row is stored as -2 - row, shape and coords then
+	// come from the geometry rather than the xml
+	MapModel mModel;
+	int[] mAttributeRow;
+	// values set with addValue, by position.  A map is replaced rather
+	// than changed, so snapshots can share them
+	SparseArray<HashMap<String,String>> mValues;
+
+	// columns shared with a snapshot, see own
+	private static final int IDS = 1;
+	private static final int SHAPES = 1 << 1;
+	private static final int NAMES = 1 << 2;
+	private static final int BOUNDS = 1 << 3;
+	private static final int ORIGINS = 1 << 4;
+	private static final int COORD_START = 1 << 5;
+	private static final int COORD_LENGTH = 1 << 6;
+	private static final int COORDS = 1 << 7;
+	private static final int FREE = 1 << 8;
+	private static final int SEQUENCE = 1 << 9;
+	private static final int ORDER = 1 << 10;
+	private static final int INDEX_OF_ID = 1 << 11;
+	private static final int ATTRIBUTE_ROW = 1 << 12;
+	private static final int VALUES = 1 << 13;
+	private static final int ALL_COLUMNS = (1 << 14) - 1;
+	// the columns grown together by ensureCapacity
+	private static final int PER_AREA = IDS | SHAPES | NAMES | BOUNDS | ORIGINS | COORD_START
+		| COORD_LENGTH | SEQUENCE | ORDER | ATTRIBUTE_ROW;
+	private int mShared;
+
+	AreaStore()
+	{
+		allocate();
+	}
+
+	private void allocate()
+	{
+		mIds = new int[INITIAL_CAPACITY];
+		mShapes = new byte[INITIAL_CAPACITY];
+		mNames = new String[INITIAL_CAPACITY];
+		mBounds = new float[INITIAL_CAPACITY * 4];
+		mOrigins = new float[INITIAL_CAPACITY * 2];
+		mCoordStart = new int[INITIAL_CAPACITY];
+		mCoordLength = new int[INITIAL_CAPACITY];
+		mCoords = new float[INITIAL_CAPACITY * 4];
+		mFree = new int[0];
+		mSequence = new int[INITIAL_CAPACITY];
+		mOrder = null;
+		mIndexOfId = new SparseIntArray();
+		mAttributeRow = new int[INITIAL_CAPACITY];
+		mValues = new SparseArray<HashMap<String,String>>();
+	}
+
+	/*
+	 * a snapshot, sharing the arrays of source
+	 */
+	private AreaStore(AreaStore source)
+	{
+		mCount = source.mCount;
+		mIds = source.mIds;
+		mShapes = source.mShapes;
+		mNames = source.mNames;
+		mBounds = source.mBounds;
+		mOrigins = source.mOrigins;
+		mCoordStart = source.mCoordStart;
+		mCoordLength = source.mCoordLength;
+		mCoords = source.mCoords;
+		mCoordEnd = source.mCoordEnd;
+		mCoordGarbage = source.mCoordGarbage;
+		mFree = source.mFree;
+		mFreeCount = source.mFreeCount;
+		mSequence = source.mSequence;
+		mNextSequence = source.mNextSequence;
+		mOrder = source.mOrder;
+		mIndexOfId = source.mIndexOfId;
+		mModel = source.mModel;
+		mAttributeRow = source.mAttributeRow;
+		mValues = source.mValues;
+		// decorations belong to the view and are not part of a snapshot
+		mShared = ALL_COLUMNS;
+	}
+
+	/**
+	 * an immutable copy of the areas, safe to read from any thread once
+	 * published.  Cheap: an array is copied by the next change of this
+	 * store that writes to it, not now
+	 */
+	AreaStore snapshot()
+	{
+		// SparseArray compacts itself on the first size() after a remove,
+		// do that now rather than later, under a reading snapshot
+		mValues.size();
+		mShared = ALL_COLUMNS;
+		return new AreaStore(this);
+	}
+
+	/*
+	 * called before a change: copy those of columns that a snapshot still
+	 * uses
+	 */
+	private void own(int columns)
+	{
+		int copy = columns & mShared;
+		if (copy == 0)
+		{
+			return;
+		}
+		mShared &= ~copy;
+		if ((copy & IDS) != 0)
+		{
+			mIds = mIds.clone();
+		}
+		if ((copy & SHAPES) != 0)
+		{
+			mShapes = mShapes.clone();
+		}
+		if ((copy & NAMES) != 0)
+		{
+			mNames = mNames.clone();
+		}
+		if ((copy & BOUNDS) != 0)
+		{
+			mBounds = mBounds.clone();
+		}
+		if ((copy & ORIGINS) != 0)
+		{
+			mOrigins = mOrigins.clone();
+		}
+		if ((copy & COORD_START) != 0)
+		{
+			mCoordStart = mCoordStart.clone();
+		}
+		if ((copy & COORD_LENGTH) != 0)
+		{
+			mCoordLength = mCoordLength.clone();
+		}
+		if ((copy & COORDS) != 0)
+		{
+			mCoords = mCoords.clone();
+		}
+		if ((copy & FREE) != 0)
+		{
+			mFree = mFree.clone();
+		}
+		if ((copy & SEQUENCE) != 0)
+		{
+			mSequence = mSequence.clone();
+		}
+		if (((copy & ORDER) != 0) && (mOrder != null))
+		{
+			mOrder = mOrder.clone();
+		}
+		if ((copy & INDEX_OF_ID) != 0)
+		{
+			// SparseIntArray.clone() is API 14
+			SparseIntArray indexOfId = new SparseIntArray(mIndexOfId.size());
+			for (int k = 0; k < mIndexOfId.size(); k++)
+			{
+				indexOfId.append(mIndexOfId.keyAt(k), mIndexOfId.valueAt(k));
+			}
+			mIndexOfId = indexOfId;
+		}
+		if ((copy & ATTRIBUTE_ROW) != 0)
+		{
+			mAttributeRow = mAttributeRow.clone();
+		}
+		if ((copy & VALUES) != 0)
+		{
+			// the maps themselves are never changed, share them
+			SparseArray<HashMap<String,String>> values = new SparseArray<HashMap<String,String>>(mValues.size());
+			for (int v = 0; v < mValues.size(); v++)
+			{
+				values.append(mValues.keyAt(v), mValues.valueAt(v));
+			}
+			mValues = values;
+		}
+	}
+
+	/**
+	 * @return the number of positions, including those of removed areas
+	 */
+	int size()
+	{
+		return mCount;
+	}
+
+	boolean isRemoved(int i)
+	{
+		return mShapes[i] == SHAPE_NONE;
+	}
+
+	/**
+	 * @return true if the area at i was added before the one at j
+	 */
+	boolean isBefore(int i, int j)
+	{
+		return mSequence[i] < mSequence[j];
+	}
+
+	/**
+	 * @return the positions in the order their areas were added, null if
+	 *         that is position order.  Has size() entries, removed ones
+	 *         included
+	 */
+	int[] drawOrder()
+	{
+		return mOrder;
+	}
+
+	/**
+	 * @return the position of the area with this id, -1 if there is none
+	 */
+	int indexOfId(int id)
+	{
+		return mIndexOfId.get(id, -1);
+	}
+
+	/**
+	 * @return the SHAPE constant for a shape attribute, -1 if unknown
+	 */
+	static byte parseShape(String shape)
+	{
+		for (byte s = 0; s < SHAPE_NAMES.length; s++)
+		{
+			if (SHAPE_NAMES[s].equalsIgnoreCase(shape))
+			{
+				return s;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * parse a coords attribute
+	 * @throws NumberFormatException
+	 */
+	static float[] parseCoords(String coords)
+	{
+		String[] v = coords.split(",");
+		float[] values = new float[v.length];
+		for (int i = 0; i < v.length; i++)
+		{
+			values[i] = Float.parseFloat(v[i].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * add an area
+	 * @param shape - one of the SHAPE constants
+	 * @param id
+	 * @param name
+	 * @param coords - coordinates as described above
+	 * @param offset - position of the first coordinate in coords
+	 * @param length - number of coordinates used
+	 * @return the position of the new area, -1 if the coordinates do not
+	 *         fit the shape
+	 */
+	int add(byte shape, int id, String name, float[] coords, int offset, int length)
+	{
+		if (!fits(shape, length))
+		{
+			return -1;
+		}
+		if (mFreeCount == 0)
+		{
+			ensureCapacity(mCount + 1);
+		}
+		own(PER_AREA | COORDS | INDEX_OF_ID);
+		if (shape == SHAPE_POLY)
+		{
+			// whole points only
+			length &= ~1;
+		}
+		int i;
+		if (mFreeCount > 0)
+		{
+			i = mFree[--mFreeCount];
+			moveToEndOfOrder(i);
+		}
+		else
+		{
+			i = mCount;
+			mShapes[i] = SHAPE_NONE;
+			mCoordLength[i] = 0;
+			mCount++;
+			if (mOrder != null)
+			{
+				mOrder[i] = i;
+			}
+		}
+		mSequence[i] = mNextSequence++;
+		appendCoords(i, coords, offset, length);
+		mIds[i] = id;
+		mShapes[i] = shape;
+		mNames[i] = name;
+		mAttributeRow[i] = -1;
+		computeBoundsAndOrigin(i);
+		mIndexOfId.put(id, i);
+		return i;
+	}
+
+	/*
+	 * the area at reused position i is the newest, list it last
+	 */
+	private void moveToEndOfOrder(int i)
+	{
+		if (mOrder == null)
+		{
+			// positions were in order up to now
+			mOrder = new int[mIds.length];
+			for (int k = 0; k < mCount; k++)
+			{
+				mOrder[k] = k;
+			}
+		}
+		int k = 0;
+		while (mOrder[k] != i)
+		{
+			k++;
+		}
+		System.arraycopy(mOrder, k + 1, mOrder, k, mCount - k - 1);
+		mOrder[mCount - 1] = i;
+	}
+
+	/**
+	 * add the areas of a parsed map, their attributes stay in the model's
+	 * table
+	 */
+	void addModel(MapModel model)
+	{
+		for (int i = 0; i < model.mCount; i++)
+		{
+			int start = model.mCoordStart[i];
+			int index = add(model.mShapes[i], model.mIds[i], model.mNames[i], model.mCoords,
+				start, model.mCoordStart[i + 1] - start);
+			if (index >= 0)
+			{
+				setAttributes(index, model, i);
+			}
+		}
+	}
+
+	/**
+	 * remove the area at i, its position is kept empty for the next add
+	 */
+	void remove(int i)
+	{
+		own(INDEX_OF_ID | IDS | SHAPES | NAMES | ATTRIBUTE_ROW | VALUES | COORD_LENGTH | FREE);
+		mIndexOfId.delete(mIds[i]);
+		mIds[i] = 0;
+		mShapes[i] = SHAPE_NONE;
+		mNames[i] = null;
+		mAttributeRow[i] = -1;
+		mValues.remove(i);
+		mCoordGarbage += mCoordLength[i];
+		mCoordLength[i] = 0;
+		if (mDecorations != null)
+		{
+			mDecorations[i] = null;
+			mDecorationRequested[i] = false;
+		}
+		if (mFreeCount == mFree.length)
+		{
+			mFree = grow(mFree, Math.max(INITIAL_CAPACITY, mFreeCount * 2));
+		}
+		mFree[mFreeCount++] = i;
+	}
+
+	/**
+	 * replace the coordinates of the area at i, keeping its shape
+	 * @return false if the coordinates do not fit the shape
+	 */
+	boolean setCoords(int i, float[] coords, int offset, int length)
+	{
+		byte shape = mShapes[i];
+		if (!fits(shape, length))
+		{
+			return false;
+		}
+		if (shape == SHAPE_POLY)
+		{
+			length &= ~1;
+		}
+		own(COORDS | COORD_START | COORD_LENGTH | BOUNDS | ORIGINS);
+		geometryChanged(i);
+		if (length <= mCoordLength[i])
+		{
+			// overwrite in place
+			System.arraycopy(coords, offset, mCoords, mCoordStart[i], length);
+			mCoordGarbage += mCoordLength[i] - length;
+			mCoordLength[i] = length;
+		}
+		else
+		{
+			mCoordGarbage += mCoordLength[i];
+			mCoordLength[i] = 0;
+			appendCoords(i, coords, offset, length);
+		}
+		computeBoundsAndOrigin(i);
+		return true;
+	}
+
+	/**
+	 * move the area at i by dx, dy
+	 */
+	void offset(int i, float dx, float dy)
+	{
+		own(COORDS | BOUNDS | ORIGINS);
+		geometryChanged(i);
+		float[] c = mCoords;
+		int start = mCoordStart[i];
+		// the radius of a circle stays
+		int end = mShapes[i] == SHAPE_CIRCLE ? start + 2 : start + mCoordLength[i];
+		for (int p = start; p < end; p += 2)
+		{
+			c[p] += dx;
+			c[p + 1] += dy;
+		}
+		computeBoundsAndOrigin(i);
+	}
+
+	private static boolean fits(byte shape, int length)
+	{
+		switch (shape)
+		{
+			case SHAPE_RECT:
+				return length == 4;
+			case SHAPE_CIRCLE:
+				return length == 3;
+			case SHAPE_POLY:
+				return length >= 2;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * forget all areas, the arrays are kept for reuse
+	 */
+	void clear()
+	{
+		for (int i = 0; i < mCount; i++)
+		{
+			if ((mShared & NAMES) == 0)
+			{
+				mNames[i] = null;
+			}
+			if (mDecorations != null)
+			{
+				mDecorations[i] = null;
+				mDecorationRequested[i] = false;
+			}
+		}
+		if (mShared != 0)
+		{
+			// leave the arrays to the snapshot rather than copy them
+			allocate();
+			mShared = 0;
+		}
+		mCount = 0;
+		mCoordEnd = 0;
+		mCoordGarbage = 0;
+		mFreeCount = 0;
+		mNextSequence = 0;
+		mOrder = null;
+		mIndexOfId.clear();
+		mModel = null;
+		mValues.clear();
+	}
+
+	private void computeBoundsAndOrigin(int i)
+	{
+		float[] c = mCoords;
+		int start = mCoordStart[i];
+		int b = i * 4;
+		int o = i * 2;
+		switch (mShapes[i])
+		{
+			case SHAPE_RECT:
+				System.arraycopy(c, start, mBounds, b, 4);
+				mOrigins[o] = c[start];
+				mOrigins[o + 1] = c[start + 1];
+				break;
+			case SHAPE_CIRCLE:
+				float r = c[start + 2];
+				mBounds[b] = c[start] - r;
+				mBounds[b + 1] = c[start + 1] - r;
+				mBounds[b + 2] = c[start] + r;
+				mBounds[b + 3] = c[start + 1] + r;
+				mOrigins[o] = c[start];
+				mOrigins[o + 1] = c[start + 1];
+				break;
+			default:
+				int end = start + mCoordLength[i];
+				float left = c[start];
+				float top = c[start + 1];
+				float right = left;
+				float bottom = top;
+				for (int p = start + 2; p < end; p += 2)
+				{
+					left = Math.min(left, c[p]);
+					right = Math.max(right, c[p]);
+					top = Math.min(top, c[p + 1]);
+					bottom = Math.max(bottom, c[p + 1]);
+				}
+				mBounds[b] = left;
+				mBounds[b + 1] = top;
+				mBounds[b + 2] = right;
+				mBounds[b + 3] = bottom;
+				computeCentroid(i);
+				break;
+		}
+	}
+
+	/**
+	 * area() and computeCentroid() are adapted from the implementation
+	 * of polygon.java  published from a princeton case study
+	 * The study is here: http://introcs.cs.princeton.edu/java/35purple/
+	 * The polygon.java source is here: http://introcs.cs.princeton.edu/java/35purple/Polygon.java.html
+	 */
+	private double area(int i)
+	{
+		float[] c = mCoords;
+		int start = mCoordStart[i];
+		int end = start + mCoordLength[i];
+		double sum = 0.0;
+		for (int p = start; p < end; p += 2)
+		{
+			// the last point connects back to the first
+			int q = (p + 2 < end) ? p + 2 : start;
+			sum = sum + (c[p] * c[q + 1]) - (c[p + 1] * c[q]);
+		}
+		sum = 0.5 * sum;
+		return Math.abs(sum);
+	}
+
+	private void computeCentroid(int i)
+	{
+		float[] c = mCoords;
+		int start = mCoordStart[i];
+		int end = start + mCoordLength[i];
+		double cx = 0.0, cy = 0.0;
+		for (int p = start; p < end; p += 2)
+		{
+			int q = (p + 2 < end) ? p + 2 : start;
+			double cross = (c[p + 1] * c[q]) - (c[p] * c[q + 1]);
+			cx = cx + (c[p] + c[q]) * cross;
+			cy = cy + (c[p + 1] + c[q + 1]) * cross;
+		}
+		double area = area(i);
+		cx /= (6 * area);
+		cy /= (6 * area);
+		mOrigins[i * 2] = Math.abs((int) cx);
+		mOrigins[(i * 2) + 1] = Math.abs((int) cy);
+	}
+
+	float getOriginX(int i)
+	{
+		return mOrigins[i * 2];
+	}
+
+	float getOriginY(int i)
+	{
+		return mOrigins[(i * 2) + 1];
+	}
+
+	/**
+	 * bounding box of the area in image coordinates
+	 */
+	void getBounds(int i, RectF out)
+	{
+		int b = i * 4;
+		out.set(mBounds[b], mBounds[b + 1], mBounds[b + 2], mBounds[b + 3]);
+	}
+
+	boolean isInArea(int i, float x, float y)
+	{
+		if (mShapes[i] == SHAPE_NONE)
+		{
+			return false;
+		}
+		int b = i * 4;
+		if ((x < mBounds[b]) || (x > mBounds[b + 2]) || (y < mBounds[b + 1]) || (y > mBounds[b + 3]))
+		{
+			return false;
+		}
+		float[] c = mCoords;
+		int start = mCoordStart[i];
+		switch (mShapes[i])
+		{
+			case SHAPE_RECT:
+				return (x > c[start]) && (x < c[start + 2]) && (y > c[start + 1]) && (y < c[start + 3]);
+			case SHAPE_CIRCLE:
+				// if tap is less than radius distance from the center
+				float dx = c[start] - x;
+				float dy = c[start + 1] - y;
+				return (float) Math.sqrt((dx * dx) + (dy * dy)) < c[start + 2];
+			default:
+				/*
+				 * This is a java port of the
+				 * W. Randolph Franklin algorithm explained here
+				 * http://www.ecse.rpi.edu/Homepages/wrf/Research/Short_Notes/pnpoly.html
+				 */
+				int end = start + mCoordLength[i];
+				boolean inside = false;
+				for (int p = start, q = end - 2; p < end; q = p, p += 2)
+				{
+					if (((c[p + 1] > y) != (c[q + 1] > y))
+						&& (x < (c[q] - c[p]) * (y - c[p + 1]) / (c[q + 1] - c[p + 1]) + c[p]))
+					{
+						inside = !inside;
+					}
+				}
+				return inside;
+		}
+	}
+
+	/**
+	 * outline of the area in image coordinates, see AreaPathCache
+	 */
+	Path buildPath(int i)
+	{
+		float[] c = mCoords;
+		int start = mCoordStart[i];
+		Path path = new Path();
+		switch (mShapes[i])
+		{
+			case SHAPE_RECT:
+				path.addRect(c[start], c[start + 1], c[start + 2], c[start + 3], Path.Direction.CW);
+				break;
+			case SHAPE_CIRCLE:
+				path.addCircle(c[start], c[start + 1], c[start + 2], Path.Direction.CW);
+				break;
+			default:
+				int end = start + mCoordLength[i];
+				path.incReserve((end - start) / 2);
+				path.moveTo(c[start], c[start + 1]);
+				for (int p = start + 2; p < end; p += 2)
+				{
+					path.lineTo(c[p], c[p + 1]);
+				}
+				path.close();
+				break;
+		}
+		return path;
+	}
+
+	int getVertexCount(int i)
+	{
+		switch (mShapes[i])
+		{
+			case SHAPE_POLY:
+				return mCoordLength[i] / 2;
+			case SHAPE_NONE:
+				return 0;
+			default:
+				// rects have four corners, circles are stored as four
+				// curve segments
+				return 4;
+		}
+	}
+
+	void addValue(int i, String key, String value)
+	{
+		own(VALUES);
+		// a new map, a snapshot may hold the old one
+		HashMap<String,String> old = mValues.get(i);
+		HashMap<String,String> values = old != null ? new HashMap<String,String>(old)
+			: new HashMap<String,String>();
+		values.put(key, value);
+		mValues.put(i, values);
+	}
+
+	/**
+	 * look a value up in the values set with addValue, then in the
+	 * attribute table, then in the geometry
+	 */
+	String getValue(int i, String key)
+	{
+		if (mShapes[i] == SHAPE_NONE)
+		{
+			return null;
+		}
+		HashMap<String,String> values = mValues.get(i);
+		if ((values != null) && values.containsKey(key))
+		{
+			return values.get(key);
+		}
+		int stored = mAttributeRow[i];
+		int row = stored >= -1 ? stored : -2 - stored;
+		if ((mModel != null) && (row >= 0) && ((stored >= 0) || !isGeometryKey(key)))
+		{
+			String value = mModel.getAttributes().get(row, key);
+			if (value != null)
+			{
+				return value;
+			}
+		}
+		return getGeometryValue(i, key);
+	}
+
+	/**
+	 * use row of the attributes of model for the area at i
+	 */
+	void setAttributes(int i, MapModel model, int row)
+	{
+		own(ATTRIBUTE_ROW);
+		if ((mModel == null) || (mModel == model))
+		{
+			mModel = model;
+			mAttributeRow[i] = row;
+		}
+		else
+		{
+			// a second map in the same view, copy its values but the
+			// geometry, which would go stale once the area is changed
+			AreaAttributes table = model.getAttributes();
+			int keys = table.mKeys.length;
+			for (int k = 0; k < keys; k++)
+			{
+				String value = table.get(row, table.mKeys[k]);
+				if ((value != null) && !isGeometryKey(table.mKeys[k]))
+				{
+					addValue(i, table.mKeys[k], value);
+				}
+			}
+		}
+	}
+
+	/*
+	 * the geometry of the area at i was changed, its xml shape and coords
+	 * no longer apply
+	 */
+	private void geometryChanged(int i)
+	{
+		if (mAttributeRow[i] >= 0)
+		{
+			own(ATTRIBUTE_ROW);
+			mAttributeRow[i] = -2 - mAttributeRow[i];
+		}
+	}
+
+	private static boolean isGeometryKey(String key)
+	{
+		return "shape".equals(key) || "coords".equals(key);
+	}
+
+	/*
+	 * shape and coords of areas not from the xml or changed since, built
+	 * from the geometry
+	 */
+	private String getGeometryValue(int i, String key)
+	{
+		if ("shape".equals(key))
+		{
+			return SHAPE_NAMES[mShapes[i]];
+		}
+		if ("coords".equals(key))
+		{
+			StringBuilder sb = new StringBuilder();
+			int start = mCoordStart[i];
+			for (int p = start; p < start + mCoordLength[i]; p++)
+			{
+				if (p > start)
+				{
+					sb.append(',');
+				}
+				float v = mCoords[p];
+				if (v == (int) v)
+				{
+					sb.append((int) v);
+				}
+				else
+				{
+					sb.append(v);
+				}
+			}
+			return sb.toString();
+		}
+		return null;
+	}
+
+	Bitmap getDecoration(int i)
+	{
+		return mDecorations != null ? mDecorations[i] : null;
+	}
+
+	void setDecoration(int i, Bitmap b)
+	{
+		ensureDecorations();
+		mDecorations[i] = b;
+	}
+
+	boolean isDecorationRequested(int i)
+	{
+		return mDecorationRequested != null && mDecorationRequested[i];
+	}
+
+	void setDecorationRequested(int i, boolean requested)
+	{
+		ensureDecorations();
+		mDecorationRequested[i] = requested;
+	}
+
+	private void ensureDecorations()
+	{
+		if (mDecorations == null)
+		{
+			mDecorations = new Bitmap[mIds.length];
+			mDecorationRequested = new boolean[mIds.length];
+		}
+	}
+
+	/*
+	 * copy coordinates to the end of the buffer for the area at i
+	 */
+	private void appendCoords(int i, float[] coords, int offset, int length)
+	{
+		if (mCoords.length < mCoordEnd + length)
+		{
+			compactCoords(length);
+		}
+		System.arraycopy(coords, offset, mCoords, mCoordEnd, length);
+		mCoordStart[i] = mCoordEnd;
+		mCoordLength[i] = length;
+		mCoordEnd += length;
+	}
+
+	/*
+	 * move the coordinates in use to a new buffer with room for at least
+	 * length more, dropping those no area owns.  The buffer is at most half
+	 * full afterwards, so compacting is rare
+	 */
+	private void compactCoords(int length)
+	{
+		int used = mCoordEnd - mCoordGarbage;
+		float[] coords = new float[Math.max(mCoords.length, (used + length) * 2)];
+		int end = 0;
+		for (int i = 0; i < mCount; i++)
+		{
+			if (mShapes[i] != SHAPE_NONE)
+			{
+				System.arraycopy(mCoords, mCoordStart[i], coords, end, mCoordLength[i]);
+				mCoordStart[i] = end;
+				end += mCoordLength[i];
+			}
+		}
+		mCoords = coords;
+		mCoordEnd = end;
+		mCoordGarbage = 0;
+		mShared &= ~COORDS;
+	}
+
+	private void ensureCapacity(int count)
+	{
+		if (mIds.length < count)
+		{
+			int size = Math.max(count, mIds.length * 2);
+			mIds = grow(mIds, size);
+			byte[] shapes = new byte[size];
+			System.arraycopy(mShapes, 0, shapes, 0, mCount);
+			mShapes = shapes;
+			String[] names = new String[size];
+			System.arraycopy(mNames, 0, names, 0, mCount);
+			mNames = names;
+			mBounds = grow(mBounds, size * 4);
+			mOrigins = grow(mOrigins, size * 2);
+			mCoordStart = grow(mCoordStart, size);
+			mCoordLength = grow(mCoordLength, size);
+			mAttributeRow = grow(mAttributeRow, size);
+			mSequence = grow(mSequence, size);
+			if (mOrder != null)
+			{
+				mOrder = grow(mOrder, size);
+			}
+			// all new arrays
+			mShared &= ~PER_AREA;
+			if (mDecorations != null)
+			{
+				Bitmap[] decorations = new Bitmap[size];
+				System.arraycopy(mDecorations, 0, decorations, 0, mCount);
+				mDecorations = decorations;
+				boolean[] requested = new boolean[size];
+				System.arraycopy(mDecorationRequested, 0, requested, 0, mCount);
+				mDecorationRequested = requested;
+			}
+		}
+	}
+
+	private static int[] grow(int[] a, int size)
+	{
+		int[] b = new int[size];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	private static float[] grow(float[] a, int size)
+	{
+		float[] b = new float[size];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+}
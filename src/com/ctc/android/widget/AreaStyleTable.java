@@ -0,0 +1,57 @@
+package com.ctc.android.widget;
+
+/**
+ * Fill and outline colours of the areas, indexed by area position
+ * (Area._index).  A colour of 0 (fully transparent) means not drawn.
+ */
+class AreaStyleTable
+{
+	int[] mFill = new int[0];
+	int[] mStroke = new int[0];
+	// number of areas with a fill or outline, lets drawing skip the table
+	int mStyledCount;
+
+	void set(int index, int fill, int stroke)
+	{
+		ensureCapacity(index + 1);
+		boolean was = (mFill[index] != 0) || (mStroke[index] != 0);
+		boolean is = (fill != 0) || (stroke != 0);
+		mFill[index] = fill;
+		mStroke[index] = stroke;
+		if (was != is)
+		{
+			mStyledCount += is ? 1 : -1;
+		}
+	}
+
+	void clear()
+	{
+		mFill = new int[0];
+		mStroke = new int[0];
+		mStyledCount = 0;
+	}
+
+	int getFill(int index)
+	{
+		return index < mFill.length ? mFill[index] : 0;
+	}
+
+	int getStroke(int index)
+	{
+		return index < mStroke.length ? mStroke[index] : 0;
+	}
+
+	void ensureCapacity(int count)
+	{
+		if (mFill.length < count)
+		{
+			int size = Math.max(count, mFill.length * 2);
+			int[] fill = new int[size];
+			int[] stroke = new int[size];
+			System.arraycopy(mFill, 0, fill, 0, mFill.length);
+			System.arraycopy(mStroke, 0, stroke, 0, mStroke.length);
+			mFill = fill;
+			mStroke = stroke;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.ctc.android.widget;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared worker thread for ImageMap work that must stay off the UI thread
+ * (decoding, prefetching).  A single background priority thread is used so
+ * that queued work runs in submission order and never competes with drawing.
+ */
+final class BackgroundExecutor
+{
+	private static ExecutorService sExecutor;
+
+	private BackgroundExecutor()
+	{
+	}
+
+	static synchronized ExecutorService get()
+	{
+		if (sExecutor == null)
+		{
+			sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable r)
+				{
+					Thread t = new Thread(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "ImageMap background");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sExecutor;
+	}
+}
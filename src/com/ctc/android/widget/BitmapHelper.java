@@ -59,13 +59,29 @@ public class BitmapHelper
 		if (getBitmapFromMemCache(key) == null)
 		{
 			Log.e("Bitmap Helper", "Putting bitmap to cache for key: " + key);
-			mMemoryCache.put(key, bitmap);
+			Tracing.begin("BitmapHelper#addBitmapToMemoryCache");
+			try
+			{
+				mMemoryCache.put(key, bitmap);
+			}
+			finally
+			{
+				Tracing.end();
+			}
 		}
 	}
 
 	public Bitmap getBitmapFromMemCache(String key)
 	{
 		Log.e("Bitmap Helper", "Loading bitmap from cache for key: " + key);
-		return mMemoryCache.get(key);
+		Tracing.begin("BitmapHelper#getBitmapFromMemCache");
+		try
+		{
+			return mMemoryCache.get(key);
+		}
+		finally
+		{
+			Tracing.end();
+		}
 	}
 }
@@ -0,0 +1,151 @@
+package com.ctc.android.widget;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayList;
+
+/**
+ * Bitmaps released by ImageMaps, kept to be drawn or decoded into again
+ * instead of allocating a new bitmap of the same size.  Zooming back to an
+ * earlier size, or switching between images of the same size, then reuses
+ * memory rather than growing the heap.
+ *
+ * Only bitmaps a view created itself (scaled copies, images decoded by
+ * switchTo) are pooled, never bitmaps handed in by the app or held by
+ * BitmapHelper.  The pool is bounded to a share of the heap, the oldest
+ * bitmaps are recycled first.  Safe to use from any thread.
+ */
+final class BitmapPool
+{
+	// share of the heap the pool may hold
+	private static final int HEAP_DIVISOR = 8;
+
+	private static final ArrayList<Bitmap> sBitmaps = new ArrayList<Bitmap>();
+	private static long sBytes;
+
+	private BitmapPool()
+	{
+	}
+
+	private static long getMaxBytes()
+	{
+		return Runtime.getRuntime().maxMemory() / HEAP_DIVISOR;
+	}
+
+	private static long sizeOf(Bitmap b)
+	{
+		return (long) b.getRowBytes() * b.getHeight();
+	}
+
+	/**
+	 * give a bitmap that is no longer drawn to the pool, it is recycled if
+	 * it cannot be reused
+	 */
+	static void put(Bitmap b)
+	{
+		if (b == null || b.isRecycled())
+		{
+			return;
+		}
+		long size = sizeOf(b);
+		long max = getMaxBytes();
+		if (!b.isMutable() || size > max)
+		{
+			b.recycle();
+			return;
+		}
+		synchronized (sBitmaps)
+		{
+			sBitmaps.add(b);
+			sBytes += size;
+			while (sBytes > max)
+			{
+				Bitmap oldest = sBitmaps.remove(0);
+				sBytes -= sizeOf(oldest);
+				oldest.recycle();
+			}
+		}
+	}
+
+	/**
+	 * @return a pooled bitmap of exactly this size and config, with
+	 *         undefined content, or null if there is none
+	 */
+	static Bitmap get(int width, int height, Bitmap.Config config)
+	{
+		synchronized (sBitmaps)
+		{
+			for (int i = sBitmaps.size() - 1; i >= 0; i--)
+			{
+				Bitmap b = sBitmaps.get(i);
+				if (b.getWidth() == width && b.getHeight() == height && b.getConfig() == config)
+				{
+					sBitmaps.remove(i);
+					sBytes -= sizeOf(b);
+					return b;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * release every pooled bitmap, e.g. when memory runs low
+	 */
+	static void clear()
+	{
+		synchronized (sBitmaps)
+		{
+			for (Bitmap b : sBitmaps)
+			{
+				b.recycle();
+			}
+			sBitmaps.clear();
+			sBytes = 0;
+		}
+	}
+
+	/**
+	 * Decode an image resource as setImageResource does, into the memory
+	 * of a pooled bitmap of the same size where the platform allows it
+	 * (API 11 and up).  The result is mutable so it can be pooled again.
+	 * @return the image, null if it could not be decoded
+	 */
+	static Bitmap decodeResource(Resources res, int resId)
+	{
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inSampleSize = 1;
+		try
+		{
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			{
+				options.inJustDecodeBounds = true;
+				BitmapFactory.decodeResource(res, resId, options);
+				options.inJustDecodeBounds = false;
+				options.inMutable = true;
+				options.inBitmap = get(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+				if (options.inBitmap != null)
+				{
+					try
+					{
+						return BitmapFactory.decodeResource(res, resId, options);
+					}
+					catch (IllegalArgumentException e)
+					{
+						// not reusable for this image after all
+						put(options.inBitmap);
+						options.inBitmap = null;
+					}
+				}
+			}
+			return BitmapFactory.decodeResource(res, resId, options);
+		}
+		catch (OutOfMemoryError e)
+		{
+			return null;
+		}
+	}
+}
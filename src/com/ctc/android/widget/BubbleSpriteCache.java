@@ -0,0 +1,143 @@
+package com.ctc.android.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.support.v4.util.LruCache;
+
+/**
+ * Pre-rendered info bubbles shared by every ImageMap.
+ *
+ * A bubble's size only depends on its text and style, so the text is
+ * measured once and the rounded body, its shadow and the text are rendered
+ * once into a small bitmap the first time the bubble is drawn.  Later bubbles
+ * with the same text and style, in this or any other view, reuse both.
+ * Only the pointer to the area origin is drawn per frame.
+ */
+class BubbleSpriteCache
+{
+	// padding around the text and size of the drop shadow, see Bubble
+	static final int PADDING = 20;
+	static final int SHADOW = 4;
+	private static final float CORNER = 20.0f;
+
+	private static BubbleSpriteCache instance;
+
+	static synchronized BubbleSpriteCache getInstance()
+	{
+		if (null == instance)
+		{
+			instance = new BubbleSpriteCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * Measurements and, once drawn, the rendered bitmap of one bubble
+	 */
+	static class Sprite
+	{
+		final String text;
+		final float textScale;
+		final int width;
+		final int height;
+		final int baseline;
+		Bitmap bitmap;
+
+		Sprite(String text, float textScale, int width, int height, int baseline)
+		{
+			this.text = text;
+			this.textScale = textScale;
+			this.width = width;
+			this.height = height;
+			this.baseline = baseline;
+		}
+	}
+
+	private final LruCache<String, Sprite> mSprites;
+
+	// measuring and rendering never touch the caller's paints
+	private final Paint mTextPaint = new Paint();
+	private final Rect mBounds = new Rect();
+	private final RectF mRect = new RectF();
+
+	private BubbleSpriteCache()
+	{
+		// sized in kilobytes, a sixteenth of the heap is plenty for labels
+		int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 16);
+		mSprites = new LruCache<String, Sprite>(cacheSize)
+		{
+			@Override
+			protected int sizeOf(String key, Sprite sprite)
+			{
+				// the size of the ARGB_8888 bitmap render will draw, so
+				// an entry keeps its size once it is rendered
+				return 1 + ((sprite.width + SHADOW) * (sprite.height + SHADOW) * 4 / 1024);
+			}
+		};
+	}
+
+	/**
+	 * measure a bubble, reusing an earlier measurement of the same text
+	 * @param text
+	 * @param textPaint - style of the text
+	 * @param bubbleColor
+	 * @param shadowColor
+	 * @param maxWidth - text is squeezed horizontally to fit this width
+	 */
+	synchronized Sprite measure(String text, Paint textPaint, int bubbleColor, int shadowColor, int maxWidth)
+	{
+		String key = key(text, textPaint, bubbleColor, shadowColor, maxWidth);
+		Sprite sprite = mSprites.get(key);
+		if (sprite == null)
+		{
+			mTextPaint.set(textPaint);
+			mTextPaint.setTextScaleX(1.0f);
+			mTextPaint.getTextBounds(text, 0, text.length(), mBounds);
+			float scale = 1.0f;
+			int w = mBounds.right - mBounds.left + PADDING;
+			if (w > maxWidth && maxWidth > 0)
+			{
+				// too long for the display width...need to scale down
+				scale = (float) maxWidth / (float) w;
+				mTextPaint.setTextScaleX(scale);
+				mTextPaint.getTextBounds(text, 0, text.length(), mBounds);
+				w = mBounds.right - mBounds.left + PADDING;
+			}
+			int h = mBounds.bottom - mBounds.top + PADDING;
+			sprite = new Sprite(text, scale, w, h, h - mBounds.bottom);
+			mSprites.put(key, sprite);
+		}
+		return sprite;
+	}
+
+	/**
+	 * get the rendered bubble, drawing it the first time
+	 */
+	synchronized Bitmap render(Sprite sprite, Paint textPaint, Paint bubblePaint, Paint shadowPaint)
+	{
+		if (sprite.bitmap == null)
+		{
+			Bitmap b = Bitmap.createBitmap(sprite.width + SHADOW, sprite.height + SHADOW, Bitmap.Config.ARGB_8888);
+			Canvas c = new Canvas(b);
+			mRect.set(SHADOW, SHADOW, SHADOW + sprite.width, SHADOW + sprite.height);
+			c.drawRoundRect(mRect, CORNER, CORNER, shadowPaint);
+			mRect.set(0, 0, sprite.width, sprite.height);
+			c.drawRoundRect(mRect, CORNER, CORNER, bubblePaint);
+			mTextPaint.set(textPaint);
+			mTextPaint.setTextScaleX(sprite.textScale);
+			c.drawText(sprite.text, sprite.width / 2, sprite.baseline - 10, mTextPaint);
+			sprite.bitmap = b;
+		}
+		return sprite.bitmap;
+	}
+
+	private static String key(String text, Paint textPaint, int bubbleColor, int shadowColor, int maxWidth)
+	{
+		return text + '\u0000' + textPaint.getTextSize() + ':' + textPaint.getColor() + ':'
+			+ System.identityHashCode(textPaint.getTypeface()) + ':' + bubbleColor + ':'
+			+ shadowColor + ':' + maxWidth;
+	}
+}
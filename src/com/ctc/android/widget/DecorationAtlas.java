@@ -0,0 +1,68 @@
+package com.ctc.android.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * A set of marker icons packed into one shared bitmap.
+ *
+ * Areas refer to an icon by its index (see ImageMap.setAreaIcon) instead of
+ * holding their own Bitmap, so decorating thousands of areas with a handful
+ * of marker types costs one int per area and every marker is drawn from the
+ * same bitmap.
+ */
+public class DecorationAtlas
+{
+	final Bitmap mBitmap;
+	final Rect[] mIcons;
+
+	/**
+	 * An atlas laid out as a grid of equally sized icons, numbered left to
+	 * right and top to bottom
+	 * @param bitmap
+	 * @param iconWidth
+	 * @param iconHeight
+	 */
+	public DecorationAtlas(Bitmap bitmap, int iconWidth, int iconHeight)
+	{
+		mBitmap = bitmap;
+		int columns = bitmap.getWidth() / iconWidth;
+		int rows = bitmap.getHeight() / iconHeight;
+		mIcons = new Rect[columns * rows];
+		for (int row = 0; row < rows; row++)
+		{
+			for (int column = 0; column < columns; column++)
+			{
+				int left = column * iconWidth;
+				int top = row * iconHeight;
+				mIcons[(row * columns) + column] = new Rect(left, top, left + iconWidth, top + iconHeight);
+			}
+		}
+	}
+
+	/**
+	 * An atlas with arbitrary icon positions
+	 * @param bitmap
+	 * @param icons - the bounds of each icon within the bitmap
+	 */
+	public DecorationAtlas(Bitmap bitmap, Rect[] icons)
+	{
+		mBitmap = bitmap;
+		mIcons = icons.clone();
+	}
+
+	public Bitmap getBitmap()
+	{
+		return mBitmap;
+	}
+
+	public int getIconCount()
+	{
+		return mIcons.length;
+	}
+
+	Rect getIcon(int index)
+	{
+		return mIcons[index];
+	}
+}
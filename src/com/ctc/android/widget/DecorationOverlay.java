@@ -0,0 +1,384 @@
+package com.ctc.android.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.RectF;
+import android.os.Build;
+
+import java.util.Arrays;
+
+/**
+ * Offscreen cache of the area decorations and atlas icons for the current zoom.
+ *
+ * The scaled image is split into square cells.  The decorations of the
+ * areas whose origin falls in a cell are recorded into a Picture once, the
+ * first time the cell is visible after a zoom change.  Panning then replays
+ * one Picture per visible cell instead of issuing a drawBitmap per area, and
+ * changing a single decoration only re-records its own cell.
+ *
+ * A pinch changes the zoom every frame.  The cells are not laid out again
+ * until it ends, the Pictures recorded before it are stretched meanwhile like
+ * the image preview, and cells changed or not recorded yet are drawn
+ * directly.
+ *
+ * Hardware accelerated canvases cannot replay a Picture before API 23, there
+ * the cells are still used for culling but the decorations are drawn directly.
+ */
+class DecorationOverlay
+{
+	// cell size in pixels of the scaled image
+	private static final int CELL_SIZE = 256;
+
+	// Build.VERSION_CODES.M, newer than the SDK we compile against
+	private static final int PICTURE_HW_SUPPORT = 23;
+
+	private final ImageMap mMap;
+
+	// zoom the cells were laid out for
+	private float mResizeX;
+	private float mResizeY;
+	private boolean mLayoutValid = false;
+
+	private int mColumns;
+	private int mRows;
+	// mColumns * mRows, the arrays below may be longer
+	private int mCellCount;
+	// areas of each cell as linked lists of area positions: the first in
+	// mCellHead, the next of area i in mNext[i], -1 ends the list
+	private int[] mCellHead = new int[0];
+	private int[] mCellSize = new int[0];
+	private int[] mNext = new int[0];
+	private Picture[] mPictures;
+	// extent of the decorations of each cell, in scaled image coordinates
+	private RectF[] mBounds;
+	// extent of the areas of each cell, decorations not loaded yet are
+	// requested while it is visible
+	private RectF[] mAreaBounds;
+	private boolean[] mDirty;
+	private final RectF mIconBounds = new RectF();
+
+	DecorationOverlay(ImageMap map)
+	{
+		mMap = map;
+	}
+
+	/**
+	 * throw everything away, the next draw lays the cells out again
+	 */
+	void invalidateAll()
+	{
+		mLayoutValid = false;
+		if (mPictures != null)
+		{
+			Arrays.fill(mPictures, null);
+		}
+	}
+
+	/**
+	 * the decoration of a single area changed, re-record its cell only
+	 */
+	void invalidateArea(int index)
+	{
+		if (mLayoutValid)
+		{
+			int cell = cellOf(index);
+			if (cell >= 0)
+			{
+				mDirty[cell] = true;
+			}
+		}
+	}
+
+	/**
+	 * take an area out of its cell, before it is moved or removed
+	 */
+	void removeArea(int index)
+	{
+		if (!mLayoutValid)
+		{
+			return;
+		}
+		int cell = cellOf(index);
+		int prev = -1;
+		for (int i = mCellHead[cell]; i >= 0; prev = i, i = mNext[i])
+		{
+			if (i == index)
+			{
+				if (prev < 0)
+				{
+					mCellHead[cell] = mNext[i];
+				}
+				else
+				{
+					mNext[prev] = mNext[i];
+				}
+				mCellSize[cell]--;
+				mDirty[cell] = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * put an area into the cell of its origin, after it was moved or added
+	 */
+	void addArea(int index)
+	{
+		if (!mLayoutValid)
+		{
+			return;
+		}
+		if (mNext.length <= index)
+		{
+			int[] next = new int[Math.max(index + 1, mNext.length * 2)];
+			System.arraycopy(mNext, 0, next, 0, mNext.length);
+			mNext = next;
+		}
+		int cell = cellOf(index);
+		// keep the list in the order the areas were added
+		AreaStore areas = mMap.mAreas;
+		int prev = -1;
+		int i = mCellHead[cell];
+		while (i >= 0 && areas.isBefore(i, index))
+		{
+			prev = i;
+			i = mNext[i];
+		}
+		mNext[index] = i;
+		if (prev < 0)
+		{
+			mCellHead[cell] = index;
+		}
+		else
+		{
+			mNext[prev] = index;
+		}
+		mCellSize[cell]++;
+		mDirty[cell] = true;
+	}
+
+	void draw(Canvas canvas)
+	{
+		if (!mLayoutValid || ((mResizeX != mMap.mResizeFactorX || mResizeY != mMap.mResizeFactorY)
+			&& !mMap.isPinching()))
+		{
+			layout();
+		}
+		// how far a pinch has stretched the cells since they were laid out
+		float sx = mResizeX > 0 ? mMap.mResizeFactorX / mResizeX : 1f;
+		float sy = mResizeY > 0 ? mMap.mResizeFactorY / mResizeY : 1f;
+		boolean stretched = (sx != 1f) || (sy != 1f);
+
+		boolean usePicture = Build.VERSION.SDK_INT >= PICTURE_HW_SUPPORT
+			|| Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+			|| !canvas.isHardwareAccelerated();
+
+		int scrollLeft = mMap.mScrollLeft;
+		int scrollTop = mMap.mScrollTop;
+		for (int cell = 0; cell < mCellCount; cell++)
+		{
+			if (mDirty[cell])
+			{
+				if (stretched)
+				{
+					// bounds and Picture follow the zoom of the layout,
+					// wait for it
+					drawCell(canvas, cell, scrollLeft, scrollTop);
+					continue;
+				}
+				computeBounds(cell);
+				mPictures[cell] = null;
+				mDirty[cell] = false;
+			}
+			if (mMap.mDecorationProvider != null && mCellSize[cell] > 0
+				&& isVisible(mAreaBounds[cell], scrollLeft, scrollTop, sx, sy))
+			{
+				for (int i = mCellHead[cell]; i >= 0; i = mNext[i])
+				{
+					if (mMap.mAreas.getDecoration(i) == null)
+					{
+						mMap.mPrefetcher.request(i);
+					}
+				}
+			}
+			RectF b = mBounds[cell];
+			if (b.isEmpty() || !isVisible(b, scrollLeft, scrollTop, sx, sy))
+			{
+				continue;
+			}
+
+			if (usePicture && (mPictures[cell] != null || !stretched))
+			{
+				if (mMap.mFrameStats != null)
+				{
+					mMap.mFrameStats.mAreasDrawn += mCellSize[cell];
+				}
+				if (mPictures[cell] == null)
+				{
+					mPictures[cell] = record(cell, b);
+				}
+				canvas.save();
+				canvas.translate(scrollLeft, scrollTop);
+				canvas.scale(sx, sy);
+				canvas.translate(b.left, b.top);
+				canvas.drawPicture(mPictures[cell]);
+				canvas.restore();
+			}
+			else
+			{
+				drawCell(canvas, cell, scrollLeft, scrollTop);
+			}
+		}
+	}
+
+	/*
+	 * draw the decorations of one cell at the current zoom
+	 */
+	private void drawCell(Canvas canvas, int cell, int scrollLeft, int scrollTop)
+	{
+		if (mMap.mFrameStats != null)
+		{
+			mMap.mFrameStats.mAreasDrawn += mCellSize[cell];
+		}
+		for (int i = mCellHead[cell]; i >= 0; i = mNext[i])
+		{
+			mMap.drawDecoration(canvas, i, scrollLeft, scrollTop);
+			mMap.drawIcon(canvas, i, scrollLeft, scrollTop);
+		}
+	}
+
+	/*
+	 * bucket every area into the cell holding its origin at the current zoom
+	 */
+	private void layout()
+	{
+		mResizeX = mMap.mResizeFactorX;
+		mResizeY = mMap.mResizeFactorY;
+		mColumns = Math.max(1, (mMap.mExpandWidth + CELL_SIZE - 1) / CELL_SIZE);
+		mRows = Math.max(1, (mMap.mExpandHeight + CELL_SIZE - 1) / CELL_SIZE);
+
+		int cells = mColumns * mRows;
+		mCellCount = cells;
+		if (mCellHead.length < cells)
+		{
+			// only grows, a zoom back out reuses the arrays
+			int size = Math.max(cells, mCellHead.length * 2);
+			mCellHead = new int[size];
+			mCellSize = new int[size];
+			mPictures = new Picture[size];
+			mDirty = new boolean[size];
+			RectF[] bounds = new RectF[size];
+			RectF[] areaBounds = new RectF[size];
+			for (int i = 0; i < size; i++)
+			{
+				bounds[i] = (mBounds != null && i < mBounds.length) ? mBounds[i] : new RectF();
+				areaBounds[i] = (mAreaBounds != null && i < mAreaBounds.length) ? mAreaBounds[i] : new RectF();
+			}
+			mBounds = bounds;
+			mAreaBounds = areaBounds;
+		}
+		for (int i = 0; i < cells; i++)
+		{
+			mCellHead[i] = -1;
+			mCellSize[i] = 0;
+			mDirty[i] = true;
+		}
+		// recorded for the old zoom
+		Arrays.fill(mPictures, null);
+		mLayoutValid = true;
+
+		int count = mMap.mAreas.size();
+		if (mNext.length < count)
+		{
+			mNext = new int[count];
+		}
+		// prepend in reverse so each list keeps the order the areas were
+		// added
+		int[] order = mMap.mAreas.drawOrder();
+		for (int k = count - 1; k >= 0; k--)
+		{
+			int i = order != null ? order[k] : k;
+			if (mMap.mAreas.isRemoved(i))
+			{
+				continue;
+			}
+			int cell = cellOf(i);
+			mNext[i] = mCellHead[cell];
+			mCellHead[cell] = i;
+			mCellSize[cell]++;
+		}
+	}
+
+	private int cellOf(int index)
+	{
+		int column = (int) (mMap.mAreas.getOriginX(index) * mResizeX) / CELL_SIZE;
+		int row = (int) (mMap.mAreas.getOriginY(index) * mResizeY) / CELL_SIZE;
+		column = Math.max(0, Math.min(mColumns - 1, column));
+		row = Math.max(0, Math.min(mRows - 1, row));
+		return (row * mColumns) + column;
+	}
+
+	/*
+	 * b is in the scaled image coordinates of the layout, stretched by sx,
+	 * sy while a pinch is in progress
+	 */
+	private boolean isVisible(RectF b, int scrollLeft, int scrollTop, float sx, float sy)
+	{
+		return (b.right * sx + scrollLeft >= 0) && (b.left * sx + scrollLeft <= mMap.mViewWidth)
+			&& (b.bottom * sy + scrollTop >= 0) && (b.top * sy + scrollTop <= mMap.mViewHeight);
+	}
+
+	private void computeBounds(int cell)
+	{
+		RectF b = mBounds[cell];
+		RectF a = mAreaBounds[cell];
+		b.setEmpty();
+		a.setEmpty();
+		for (int i = mCellHead[cell]; i >= 0; i = mNext[i])
+		{
+			mMap.mAreas.getBounds(i, mIconBounds);
+			addBounds(a, mIconBounds.left * mResizeX, mIconBounds.top * mResizeY,
+				mIconBounds.right * mResizeX, mIconBounds.bottom * mResizeY);
+			Bitmap d = mMap.mAreas.getDecoration(i);
+			if (d != null)
+			{
+				float x = mMap.getDecorationX(i);
+				float y = mMap.getDecorationY(i);
+				addBounds(b, x, y, x + d.getWidth(), y + d.getHeight());
+			}
+			if (mMap.getIconBounds(i, mIconBounds, 0, 0))
+			{
+				addBounds(b, mIconBounds.left, mIconBounds.top, mIconBounds.right, mIconBounds.bottom);
+			}
+		}
+	}
+
+	private static void addBounds(RectF b, float left, float top, float right, float bottom)
+	{
+		if (b.isEmpty())
+		{
+			b.set(left, top, right, bottom);
+		}
+		else
+		{
+			b.union(left, top, right, bottom);
+		}
+	}
+
+	/*
+	 * record the decorations of one cell, relative to its bounds
+	 */
+	private Picture record(int cell, RectF b)
+	{
+		Picture picture = new Picture();
+		Canvas c = picture.beginRecording((int) Math.ceil(b.width()), (int) Math.ceil(b.height()));
+		for (int i = mCellHead[cell]; i >= 0; i = mNext[i])
+		{
+			mMap.drawDecoration(c, i, -b.left, -b.top);
+			mMap.drawIcon(c, i, -b.left, -b.top);
+		}
+		picture.endRecording();
+		return picture;
+	}
+}
@@ -0,0 +1,196 @@
+package com.ctc.android.widget;
+
+import android.graphics.Bitmap;
+import android.util.SparseArray;
+
+import java.util.concurrent.Future;
+
+/**
+ * Loads area decorations that a fling is about to bring into view.
+ *
+ * When a fling starts the scroller already knows where it will stop, so the
+ * path from the start position to the final one is sampled and every
+ * undecorated area along it is queued, ordered by the point of the fling at
+ * which it is expected to become visible.  Work that has not started yet is
+ * dropped when the fling is interrupted, and a load that finishes after the
+ * provider was replaced is discarded.
+ *
+ * All methods must be called on the UI thread.
+ */
+class FlingPrefetcher
+{
+	// number of viewport positions sampled along the fling path
+	private static final int PATH_STEPS = 8;
+
+	// decorations are drawn around the area origin, load them a little
+	// before the origin itself enters the view
+	private static final int VIEW_MARGIN = 64;
+
+	private final ImageMap mMap;
+
+	// queued loads by the id of the area they belong to, kept so that a
+	// cancel can mark unstarted areas as not requested again
+	private final SparseArray<Future<?>> mPending = new SparseArray<Future<?>>();
+
+	FlingPrefetcher(ImageMap map)
+	{
+		mMap = map;
+	}
+
+	/**
+	 * queue decorations for a fling from (startX,startY) to (finalX,finalY)
+	 * the positions are scroll offsets as used by ImageMap (mScrollLeft/Top)
+	 */
+	void start(int startX, int startY, int finalX, int finalY)
+	{
+		cancel();
+		if (mMap.mDecorationProvider == null)
+		{
+			return;
+		}
+
+		// find the first sampled step at which each area is visible
+		AreaStore areas = mMap.mAreas;
+		int count = areas.size();
+		int[] firstStep = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			firstStep[i] = -1;
+			if (areas.isRemoved(i) || areas.getDecoration(i) != null || areas.isDecorationRequested(i))
+			{
+				continue;
+			}
+			float x = areas.getOriginX(i) * mMap.mResizeFactorX;
+			float y = areas.getOriginY(i) * mMap.mResizeFactorY;
+			for (int s = 0; s <= PATH_STEPS; s++)
+			{
+				float scrollX = startX + (finalX - startX) * s / (float) PATH_STEPS;
+				float scrollY = startY + (finalY - startY) * s / (float) PATH_STEPS;
+				if (isVisible(x + scrollX, y + scrollY))
+				{
+					firstStep[i] = s;
+					break;
+				}
+			}
+		}
+
+		for (int s = 0; s <= PATH_STEPS; s++)
+		{
+			for (int i = 0; i < count; i++)
+			{
+				if (firstStep[i] == s)
+				{
+					request(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * queue a single area by position, used for areas that are already on
+	 * screen
+	 */
+	void request(int index)
+	{
+		ImageMap.DecorationProvider provider = mMap.mDecorationProvider;
+		if (provider == null || mMap.mAreas.isDecorationRequested(index))
+		{
+			return;
+		}
+		mMap.mAreas.setDecorationRequested(index, true);
+		Load load = new Load(mMap.mAreas.mIds[index], provider);
+		load.mFuture = BackgroundExecutor.get().submit(load);
+		mPending.put(load.mId, load.mFuture);
+	}
+
+	/**
+	 * one decoration load, handed back to the UI thread when done
+	 */
+	private class Load implements Runnable
+	{
+		final int mId;
+		final ImageMap.DecorationProvider mProvider;
+		// set on the UI thread before the result can be posted back
+		Future<?> mFuture;
+
+		Load(int id, ImageMap.DecorationProvider provider)
+		{
+			mId = id;
+			mProvider = provider;
+		}
+
+		@Override
+		public void run()
+		{
+			final Bitmap b = mProvider.loadDecoration(mId);
+			// not View.post, which loses runnables posted from other
+			// threads while the view is detached
+			ImageMap.sMainHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					onLoaded(b);
+				}
+			});
+		}
+
+		void onLoaded(Bitmap b)
+		{
+			// a newer load for the same area owns the entry and the
+			// requested flag
+			Future<?> pending = mPending.get(mId);
+			boolean superseded = pending != null && pending != mFuture;
+			if (pending == mFuture)
+			{
+				mPending.remove(mId);
+			}
+			// look the area up again, positions are not kept across map
+			// changes
+			int area = mMap.mAreas.indexOfId(mId);
+			if (area < 0)
+			{
+				return;
+			}
+			if (mProvider != mMap.mDecorationProvider)
+			{
+				// loaded by a provider that was replaced, let the current
+				// one load it
+				if (!superseded)
+				{
+					mMap.mAreas.setDecorationRequested(area, false);
+					mMap.invalidate();
+				}
+			}
+			else if (b != null)
+			{
+				mMap.setAreaDecoration(area, b);
+			}
+		}
+	}
+
+	/**
+	 * drop every queued load that has not started yet
+	 */
+	void cancel()
+	{
+		for (int i = 0; i < mPending.size(); i++)
+		{
+			if (mPending.valueAt(i).cancel(false))
+			{
+				int area = mMap.mAreas.indexOfId(mPending.keyAt(i));
+				if (area >= 0)
+				{
+					mMap.mAreas.setDecorationRequested(area, false);
+				}
+			}
+		}
+		mPending.clear();
+	}
+
+	private boolean isVisible(float viewX, float viewY)
+	{
+		return (viewX > -VIEW_MARGIN) && (viewX < mMap.mViewWidth + VIEW_MARGIN)
+			&& (viewY > -VIEW_MARGIN) && (viewY < mMap.mViewHeight + VIEW_MARGIN);
+	}
+}
@@ -0,0 +1,140 @@
+package com.ctc.android.widget;
+
+/**
+ * Opt-in draw instrumentation for ImageMap (see ImageMap.setFrameStatsEnabled).
+ *
+ * Each phase of onDraw, and every bitmap rescale, is timed with
+ * System.nanoTime into its own Histogram.  The number of areas, bubbles and
+ * bitmaps handled in the last frame is kept alongside, and a Listener is told
+ * after every frame so the numbers can be exported.  All methods must be
+ * called on the UI thread.
+ */
+public class FrameStats
+{
+	public static final int PHASE_MAP = 0;
+	public static final int PHASE_HIGHLIGHTS = 1;
+	public static final int PHASE_LOCATIONS = 2;
+	public static final int PHASE_BUBBLES = 3;
+	// whole onDraw
+	public static final int PHASE_FRAME = 4;
+	// scaleBitmap, which runs outside onDraw
+	public static final int PHASE_SCALE = 5;
+	public static final int PHASE_COUNT = 6;
+
+	private static final String[] PHASE_NAMES = { "map", "highlights", "locations", "bubbles", "frame", "scale" };
+
+	public interface Listener
+	{
+		/**
+		 * A frame has been drawn, the last* getters describe it
+		 */
+		void onFrame(FrameStats stats);
+	}
+
+	private final Histogram[] mPhases = new Histogram[PHASE_COUNT];
+	private final long[] mLastNanos = new long[PHASE_COUNT];
+	private Listener mListener;
+	private long mFrames;
+
+	// counters for the frame being drawn
+	int mAreasDrawn;
+	int mBubblesDrawn;
+	int mBitmapsCreated;
+
+	private int mLastAreasDrawn;
+	private int mLastBubblesDrawn;
+	private int mLastBitmapsCreated;
+	private long mTotalBitmapsCreated;
+
+	FrameStats()
+	{
+		for (int i = 0; i < PHASE_COUNT; i++)
+		{
+			mPhases[i] = new Histogram();
+		}
+	}
+
+	public void setListener(Listener listener)
+	{
+		mListener = listener;
+	}
+
+	public static String getPhaseName(int phase)
+	{
+		return PHASE_NAMES[phase];
+	}
+
+	public Histogram getHistogram(int phase)
+	{
+		return mPhases[phase];
+	}
+
+	public long getPercentileMicros(int phase, float percentile)
+	{
+		return mPhases[phase].getPercentileMicros(percentile);
+	}
+
+	public long getFrameCount()
+	{
+		return mFrames;
+	}
+
+	public long getLastPhaseNanos(int phase)
+	{
+		return mLastNanos[phase];
+	}
+
+	public int getLastAreasDrawn()
+	{
+		return mLastAreasDrawn;
+	}
+
+	public int getLastBubblesDrawn()
+	{
+		return mLastBubblesDrawn;
+	}
+
+	public int getLastBitmapsCreated()
+	{
+		return mLastBitmapsCreated;
+	}
+
+	public long getTotalBitmapsCreated()
+	{
+		return mTotalBitmapsCreated;
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < PHASE_COUNT; i++)
+		{
+			mPhases[i].reset();
+			mLastNanos[i] = 0;
+		}
+		mFrames = 0;
+		mTotalBitmapsCreated = 0;
+	}
+
+	void record(int phase, long nanos)
+	{
+		mPhases[phase].recordNanos(nanos);
+		mLastNanos[phase] = nanos;
+	}
+
+	void endFrame(long frameNanos)
+	{
+		record(PHASE_FRAME, frameNanos);
+		mFrames++;
+		mLastAreasDrawn = mAreasDrawn;
+		mLastBubblesDrawn = mBubblesDrawn;
+		mLastBitmapsCreated = mBitmapsCreated;
+		mTotalBitmapsCreated += mBitmapsCreated;
+		mAreasDrawn = 0;
+		mBubblesDrawn = 0;
+		mBitmapsCreated = 0;
+		if (mListener != null)
+		{
+			mListener.onFrame(this);
+		}
+	}
+}
@@ -17,9 +17,13 @@
 
 package com.ctc.android.widget;
 
+import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
-import android.content.res.XmlResourceParser;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
@@ -30,8 +34,15 @@ import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.SparseArray;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.VelocityTracker;
 import android.view.ViewConfiguration;
@@ -39,13 +50,12 @@ import android.widget.ImageView;
 import android.widget.Scroller;
 
 import org.jetbrains.annotations.NotNull;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.IOException;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImageMap extends ImageView
 {
@@ -68,10 +78,15 @@ public class ImageMap extends ImageView
 	private boolean mScaleFromOriginal=false;
 
 	// mMaxSize controls the maximum zoom size as a multiplier of the initial size.
-	// Allowing size to go too large may result in memory problems.
+	// The actual limit is lowered further when free memory cannot hold a
+	// bitmap that large, see applyMemoryBudget.
 	//  set this to 1.0f to disable resizing
 	// by default, this is 1.5f
 	private static final float defaultMaxSize = 1.5f;
+
+	// fallback frame interval for coalescing input before Choreographer (API 16)
+	private static final long FRAME_DELAY_MS = 16;
+
 	private float mMaxSize = 1.5f;
 
 	/* Touch event handling variables */
@@ -85,7 +100,8 @@ public class ImageMap extends ImageView
 
 	private boolean mIsBeingDragged = false;
 
-	HashMap<Integer,TouchPoint> mTouchPoints = new HashMap<Integer,TouchPoint>();
+	// created on the first touch, see ensureInteraction
+	HashMap<Integer,TouchPoint> mTouchPoints;
 	TouchPoint mMainTouch=null;
 	TouchPoint mPinchTouch=null;
 
@@ -95,17 +111,60 @@ public class ImageMap extends ImageView
 	int mLastDistanceChange=0;
 	boolean mZoomPending=false;
 
+	/*
+	 * Input coalescing
+	 * pan and zoom deltas are accumulated as touch events arrive and
+	 * applied once per frame (on vsync where Choreographer is available)
+	 * as are the redraws of areas added, moved or removed at run time
+	 */
+	float mPendingPanX=0f;
+	float mPendingPanY=0f;
+	int mPendingZoom=0;
+	// view rect covering the area changes since the last frame
+	final Rect mPendingDirty = new Rect();
+	// an area change needs the whole view redrawn (labels move)
+	boolean mPendingRedraw=false;
+	boolean mFrameScheduled=false;
+	Object mVsyncCallback;
+	Runnable mFrameRunnable;
+
 	/* Paint objects for drawing info bubbles */
 	Paint textPaint;
 	Paint textOutlinePaint;
 	Paint bubblePaint;
 	Paint bubbleShadowPaint;
+	// pointer path reused by every bubble
+	final Path mBubblePath = new Path();
 
 	/*
 	 * Bitmap handling
 	 */
 	Bitmap mImage;
 	Bitmap mOriginal;
+	// mOriginal was decoded by switchTo, so it may be pooled when replaced
+	boolean mOwnsOriginal=false;
+	// mOriginal is held by BitmapHelper for the next view showing it, so
+	// it must not be recycled
+	boolean mCachedOriginal=false;
+	// incremented by every switchTo, a switch that finishes after a newer
+	// one was asked for is dropped
+	int mSwitchGeneration;
+
+	// vector map: no image, the areas are drawn from their outlines in the
+	// base colours, see setVectorMap
+	boolean mVectorMode=false;
+	int mVectorFillColor;
+	int mVectorStrokeColor;
+
+	// two-phase zoom: while pinching mImage is only stretched on the
+	// canvas, once the pinch ends a background task rescales it properly
+	Paint mPreviewPaint;
+	Future<?> mRefineTask;
+	int mRefineGeneration;
+	// bitmaps refine tasks are reading, and those of them that were
+	// released meanwhile and must be recycled once the tasks are done
+	ArrayList<Bitmap> mRefineSources = new ArrayList<Bitmap>();
+	ArrayList<Bitmap> mDeferredRecycle = new ArrayList<Bitmap>();
 
 	// Info about the bitmap (sizes, scroll bounds)
 	// initial size
@@ -132,16 +191,65 @@ public class ImageMap extends ImageView
 	int mScrollTop;
 	int mScrollLeft;
 
+	// state saved before a configuration change, applied once the view
+	// has its size, see restoreState
+	SavedState mRestoreState;
+
 	// view height and width
 	int mViewHeight=-1;
 	int mViewWidth=-1;
 
+	// scratch rects for drawing and partial invalidation, reused to
+	// avoid allocating in onDraw
+	final Rect mDrawSrc = new Rect();
+	final Rect mDrawDst = new Rect();
+	final Rect mDrawClip = new Rect();
+	final Rect mDirty = new Rect();
+
 	/*
-	 * containers for the image map areas
-	 * using SparseArray<Area> instead of HashMap for the sake of performance
+	 * the image map areas, stored column by column.  Area objects are
+	 * flyweights created on demand and kept by position
 	 */
-	ArrayList<Area> mAreaList = new ArrayList<Area>();
-	SparseArray<Area> mIdToArea = new SparseArray<Area>();
+	final AreaStore mAreas = new AreaStore();
+	// simplified outlines of the poly areas for drawing and hit testing
+	// while zoomed out
+	final AreaLod mLod = new AreaLod(mAreas);
+	// outlines of the vector map, see setVectorMap
+	final AreaPaths mVectorPaths = new AreaPaths(mAreas, mLod);
+	SparseArray<Area> mAreaObjects = new SparseArray<Area>();
+	// areas by location for hit testing, built on the first tap
+	AreaGrid mAreaGrid;
+	// incremented by every change of the areas
+	int mAreaVersion;
+	// copy of the areas for other threads, republished on the first frame
+	// after a change while enabled, see setAreaSnapshotsEnabled
+	volatile AreaSnapshot mAreaSnapshot;
+	boolean mSnapshotsEnabled=false;
+
+	// changes made off the UI thread, applied on it in order
+	final ConcurrentLinkedQueue<Runnable> mQueuedEdits = new ConcurrentLinkedQueue<Runnable>();
+	final AtomicBoolean mEditsPosted = new AtomicBoolean();
+	static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+	// name index, built on the first name lookup
+	AreaIndex mNameIndex;
+	// attributes indexed for findAreasByAttribute and their indexes,
+	// built whenever a map is loaded
+	String[] mIndexedKeys = new String[0];
+	HashMap<String,AreaIndex> mAttributeIndexes = new HashMap<String,AreaIndex>();
+
+	// further maps shown over the image, and the visible ones by
+	// descending priority, see addLayer
+	ArrayList<MapLayer> mLayers;
+	MapLayer[] mVisibleLayers = NO_LAYERS;
+	// layer of the area found by the last hitTestAreas, null if not a layer
+	MapLayer mHitLayer;
+	static final MapLayer[] NO_LAYERS = new MapLayer[0];
+
+	// shared preview shown instead of an image of our own, see setThumbnail
+	MapThumbnail mThumbnail;
+	// its areas, created when first needed, see ensureAreas
+	MapModel mPendingModel;
 
 	// click handler list
 	ArrayList<OnImageMapClickedHandler> mCallbackList;
@@ -149,9 +257,54 @@ public class ImageMap extends ImageView
 	// list of open info bubbles
 	SparseArray<Bubble> mBubbleMap = new SparseArray<Bubble>();
 
+	// labels placed by priority without overlap, see addLabel
+	LabelLayout mLabels = new LabelLayout(this);
+
+	// draw timing, null unless enabled with setFrameStatsEnabled
+	FrameStats mFrameStats;
+
+	// input latency, null unless enabled with setInputLatencyStatsEnabled
+	InputLatencyStats mInputLatency;
+	// event time of the sample being handled
+	long mEventTime;
+	// event time of the oldest pan/zoom sample waiting for a frame (0 if none)
+	long mPendingPanTime;
+	long mPendingZoomTime;
+	// event time of the oldest pan/zoom sample waiting to be drawn (0 if none)
+	long mAppliedPanTime;
+	long mAppliedZoomTime;
+
 	// changed this from local variable to class field
 	protected String mapName;
 
+	// optional source of area decorations, loaded off the UI thread
+	DecorationProvider mDecorationProvider;
+	FlingPrefetcher mPrefetcher;
+
+	// decorations recorded once per zoom level, see setDecorationCacheEnabled
+	DecorationOverlay mDecorationOverlay;
+
+	// shared marker icons, mAreaIcons holds the icon index of each area
+	// (by position in mAreas), -1 for none
+	DecorationAtlas mDecorationAtlas;
+	int[] mAreaIcons;
+	final RectF mIconDst = new RectF();
+
+	// area fill and outline highlighting
+	AreaStyleTable mAreaStyles = new AreaStyleTable();
+	// palette for setAreaStyleIndices
+	int[] mStyleFill = new int[0];
+	int[] mStyleStroke = new int[0];
+	AreaPathCache mPathCache;
+	Paint mHighlightFillPaint;
+	Paint mHighlightStrokePaint;
+	Object mMemoryCallbacks;
+	final RectF mAreaBounds = new RectF();
+	// visible part of the image and the stroke width to restore, set by
+	// beginImageDraw
+	final RectF mViewRect = new RectF();
+	float mSavedStrokeWidth;
+
 	// accounting for screen density
 	protected float densityFactor;
 
@@ -199,77 +352,92 @@ public class ImageMap extends ImageView
 	}
 
 	/**
-	 * parse the maps.xml resource and pull out the areas
+	 * create the areas of a map from maps.xml.  The xml is parsed once per
+	 * process, see MapModel
 	 * @param map - the name of the map to load
 	 */
 	private void loadMap(String map) {
-		boolean loading = false;
+		Tracing.begin("ImageMap#loadMap");
 		try {
-			XmlResourceParser xpp = getResources().getXml(R.xml.maps);
-
-			int eventType = xpp.getEventType();
-			while (eventType != XmlPullParser.END_DOCUMENT) {
-				if(eventType == XmlPullParser.START_DOCUMENT) {
-					// Start document
-					//  This is a useful branch for a debug log if
-					//  parsing is not working
-				} else if(eventType == XmlPullParser.START_TAG) {
-					String tag = xpp.getName();
-
-					if (tag.equalsIgnoreCase("map")) {
-						String mapname = xpp.getAttributeValue(null, "name");
-						if (mapname !=null) {
-							if (mapname.equalsIgnoreCase(map)) {
-								loading=true;
-							}
-						}
-					}
-					if (loading) {
-						if (tag.equalsIgnoreCase("area")) {
-							Area a=null;
-							String shape = xpp.getAttributeValue(null, "shape");
-							String coords = xpp.getAttributeValue(null, "coords");
-							String id = xpp.getAttributeValue(null, "id");
-
-							// as a name for this area, try to find any of these
-							// attributes
-							//  name attribute is custom to this impl (not standard in html area tag)
-							String name = xpp.getAttributeValue(null, "name");
-							if (name == null) {
-								name = xpp.getAttributeValue(null, "title");
-							}
-							if (name == null) {
-								name = xpp.getAttributeValue(null, "alt");
-							}
+			addAreas(MapModel.get(getResources(), map));
+		} finally {
+			Tracing.end();
+		}
+	}
 
-							if ((shape != null) && (coords != null)) {
-								a = addShape(shape,name,coords,id);
-								if (a != null) {
-									// add all of the area tag attributes
-									// so that they are available to the
-									// implementation if needed (see getAreaAttribute)
-									for (int i=0;i<xpp.getAttributeCount();i++) {
-										String attrName = xpp.getAttributeName(i);
-										String attrVal = xpp.getAttributeValue(null,attrName);
-										a.addValue(attrName, attrVal);
-									}
-								}
-							}
-						}
-					}
-				} else if(eventType == XmlPullParser.END_TAG) {
-					String tag = xpp.getName();
-					if (tag.equalsIgnoreCase("map")) {
-						loading = false;
-					}
-				}
-				eventType = xpp.next();
-			}
-		} catch (XmlPullParserException xppe) {
-			// Having trouble loading? Log this exception
-		} catch (IOException ioe) {
-			// Having trouble loading? Log this exception
+	/**
+	 * create and add the areas of a parsed map
+	 * @param model
+	 */
+	void addAreas(MapModel model) {
+		// the area tag attributes stay in the model's table,
+		// getAreaAttribute looks them up there
+		mAreas.addModel(model);
+		mAreaGrid = null;
+		buildIndexes();
+		onAreasChanged();
+		if (mDecorationOverlay != null) {
+			mDecorationOverlay.invalidateAll();
+		}
+	}
+
+	/*
+	 * look up an area by id, creating the areas of a thumbnail first
+	 */
+	Area getArea(int areaId) {
+		ensureAreas();
+		int index = mAreas.indexOfId(areaId);
+		return index >= 0 ? getAreaAt(index) : null;
+	}
+
+	/*
+	 * the flyweight for the area at index
+	 */
+	Area getAreaAt(int index) {
+		Area a = mAreaObjects.get(index);
+		if (a == null) {
+			a = new Area(index);
+			mAreaObjects.put(index, a);
+		}
+		return a;
+	}
+
+	/*
+	 * thumbnails create their areas on first use rather than on bind
+	 */
+	void ensureAreas() {
+		if (mPendingModel != null) {
+			MapModel model = mPendingModel;
+			mPendingModel = null;
+			addAreas(model);
+		}
+	}
+
+	/*
+	 * forget all areas and what is attached to them
+	 */
+	void clearAreas() {
+		mAreas.clear();
+		mAreaObjects.clear();
+		mAreaGrid = null;
+		mNameIndex = null;
+		mAttributeIndexes.clear();
+		mBubbleMap.clear();
+		mLabels.clear();
+		if (mAreaStyles.mStyledCount > 0) {
+			mAreaStyles.clear();
+		}
+		mAreaIcons = null;
+		if (mPathCache != null) {
+			mPathCache.evictAll();
 		}
+		mLod.clear();
+		mVectorPaths.clear();
+		if (mDecorationOverlay != null) {
+			mDecorationOverlay.invalidateAll();
+		}
+		mPendingModel = null;
+		onAreasChanged();
 	}
 
 	/**
@@ -280,514 +448,2601 @@ public class ImageMap extends ImageView
 	 * @param coords
 	 * @param id
 	 * @return
+	 * @deprecated maps are now created from a shared MapModel, loading a
+	 *             map no longer calls this, so overriding it has no effect
+	 *             on the areas of maps.xml.  Use addArea to add areas
 	 */
+	@Deprecated
 	protected Area addShape( String shape, String name, String coords, String id)
 	{
-		Area a = null;
-		String rid = id.replace("@+id/", "");
-		int _id=0;
+		return addShape(shape, name, coords, MapModel.resolveId(id));
+	}
 
+	/**
+	 * Create a new area with a resolved id and add to tracking
+	 * @param shape
+	 * @param name
+	 * @param coords
+	 * @param _id
+	 * @return
+	 * @deprecated not called when a map is loaded, see
+	 *             addShape(String, String, String, String)
+	 */
+	@Deprecated
+	protected Area addShape( String shape, String name, String coords, int _id)
+	{
+		int index;
+		Tracing.begin("ImageMap#addShape");
 		try
 		{
-			Class<R.id> res = R.id.class;
-			Field field = res.getField(rid);
-			_id = field.getInt(null);
+			index = storeShape(shape, name, coords, _id);
 		}
-		catch (Exception e)
+		finally
 		{
-			_id = 0;
+			Tracing.end();
 		}
+		return index >= 0 ? getAreaAt(index) : null;
+	}
+
+	/*
+	 * parse an area into mAreas without creating an Area object
+	 * @return the position of the new area, -1 if it is not valid
+	 */
+	int storeShape( String shape, String name, String coords, int _id)
+	{
+		int index = -1;
 		if (_id != 0)
 		{
-			if (shape.equalsIgnoreCase("rect"))
-			{
-				String[] v = coords.split(",");
-				if (v.length == 4)
-				{
-					a = new RectArea(_id, name, Float.parseFloat(v[0]),
-						Float.parseFloat(v[1]),
-						Float.parseFloat(v[2]),
-						Float.parseFloat(v[3]));
-				}
-			}
-			if (shape.equalsIgnoreCase("circle"))
-			{
-				String[] v = coords.split(",");
-				if (v.length == 3) {
-					a = new CircleArea(_id,name, Float.parseFloat(v[0]),
-						Float.parseFloat(v[1]),
-						Float.parseFloat(v[2])
-					);
-				}
-			}
-			if (shape.equalsIgnoreCase("poly"))
+			byte type = AreaStore.parseShape(shape);
+			if (type >= 0)
 			{
-				a = new PolyArea(_id,name, coords);
+				float[] values = AreaStore.parseCoords(coords);
+				index = mAreas.add(type, _id, name, values, 0, values.length);
 			}
-			if (a != null)
+			if (index >= 0)
 			{
-				addArea(a);
+				onAreaAdded(index);
 			}
 		}
-		return a;
+		return index;
 	}
 
-	public void addArea( Area a )
+	/**
+	 * Add an area at run time.  Areas can be added, moved and removed at
+	 * any rate, the changes are drawn together on the next frame.  Off the
+	 * UI thread changes are queued and applied on the UI thread in order.
+	 * The boolean results then mean nothing: the change is not checked
+	 * until it is applied, and true is returned.
+	 * @param areaId - must not be in use
+	 * @param shape - rect, circle or poly
+	 * @param name
+	 * @param coords - as in the coords attribute of maps.xml
+	 * @return false if the id is in use or coords does not fit the shape,
+	 *         always true off the UI thread
+	 */
+	public boolean addArea(final int areaId, final String shape, final String name, float... coords)
 	{
-		mAreaList.add(a);
-		mIdToArea.put(a.getId(), a);
+		if (!isUiThread())
+		{
+			final float[] c = coords.clone();
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					addArea(areaId, shape, name, c);
+				}
+			});
+			return true;
+		}
+		ensureAreas();
+		return insertArea(areaId, AreaStore.parseShape(shape), name, coords) >= 0;
 	}
 
-	public void addBubble(String text, int areaId )
+	/**
+	 * Add many areas at once, see addArea
+	 * @param areaIds
+	 * @param shapes - shape of the area at the same position in areaIds
+	 * @param names
+	 * @param coords
+	 */
+	public void addAreas(int[] areaIds, String[] shapes, String[] names, float[][] coords)
 	{
-		if (mBubbleMap.get(areaId) == null)
+		if (!isUiThread())
 		{
-			Bubble b = new Bubble(text,areaId);
-			mBubbleMap.put(areaId,b);
+			final int[] ids = areaIds.clone();
+			final String[] s = shapes.clone();
+			final String[] n = names.clone();
+			final float[][] c = new float[coords.length][];
+			for (int i = 0; i < coords.length; i++)
+			{
+				c[i] = coords[i].clone();
+			}
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					addAreas(ids, s, n, c);
+				}
+			});
+			return;
+		}
+		ensureAreas();
+		for (int i = 0; i < areaIds.length; i++)
+		{
+			insertArea(areaIds[i], AreaStore.parseShape(shapes[i]), names[i], coords[i]);
 		}
 	}
 
-	public void showBubble(String text, int areaId)
+	/**
+	 * Remove an area with its bubble, label, decoration and highlight.
+	 * An Area object of the removed area must not be used any more.
+	 * @param areaId
+	 * @return false if there is no such area, always true off the UI thread
+	 */
+	public boolean removeArea(final int areaId)
 	{
-		mBubbleMap.clear();
-		addBubble(text,areaId);
-		invalidate();
+		if (!isUiThread())
+		{
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					removeArea(areaId);
+				}
+			});
+			return true;
+		}
+		ensureAreas();
+		int index = mAreas.indexOfId(areaId);
+		if (index < 0)
+		{
+			return false;
+		}
+		deleteArea(index);
+		return true;
 	}
 
-	public void showBubble(int areaId)
+	public void removeAreas(int[] areaIds)
 	{
-		mBubbleMap.clear();
-		Area a = mIdToArea.get(areaId);
-		if (a != null)
+		if (!isUiThread())
 		{
-			addBubble(a.getName(),areaId);
+			final int[] ids = areaIds.clone();
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					removeAreas(ids);
+				}
+			});
+			return;
+		}
+		ensureAreas();
+		for (int i = 0; i < areaIds.length; i++)
+		{
+			int index = mAreas.indexOfId(areaIds[i]);
+			if (index >= 0)
+			{
+				deleteArea(index);
+			}
 		}
-		invalidate();
 	}
 
-	public void centerArea( int areaId )
+	/**
+	 * Move an area so that its origin (the centre of a circle, the top left
+	 * of a rect, the centroid of a poly) is at x, y in image coordinates.
+	 * Its decoration, icon, bubble and label follow it.
+	 * @param areaId
+	 * @param x
+	 * @param y
+	 * @return false if there is no such area, always true off the UI thread
+	 */
+	public boolean moveArea(final int areaId, final float x, final float y)
 	{
-		Area a = mIdToArea.get(areaId);
-		if (a != null)
+		if (!isUiThread())
 		{
-			float x = a.getOriginX()*mResizeFactorX;
-			float y = a.getOriginY()*mResizeFactorY;
-			int left = (int)((mViewWidth/2)-x);
-			int top  = (int)((mViewHeight/2)-y);
-			moveTo(left,top);
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					moveArea(areaId, x, y);
+				}
+			});
+			return true;
+		}
+		ensureAreas();
+		int index = mAreas.indexOfId(areaId);
+		if (index < 0)
+		{
+			return false;
 		}
+		relocateArea(index, x, y);
+		return true;
 	}
 
-	public void centerAndShowArea(String text, int areaId)
+	/**
+	 * Move many areas at once, see moveArea
+	 * @param areaIds
+	 * @param positions - new origin of each area as x0, y0, x1, y1, ...
+	 */
+	public void moveAreas(int[] areaIds, float[] positions)
 	{
-		centerArea(areaId);
-		showBubble(text,areaId);
+		if (!isUiThread())
+		{
+			final int[] ids = areaIds.clone();
+			final float[] p = positions.clone();
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					moveAreas(ids, p);
+				}
+			});
+			return;
+		}
+		ensureAreas();
+		for (int i = 0; i < areaIds.length; i++)
+		{
+			int index = mAreas.indexOfId(areaIds[i]);
+			if (index >= 0)
+			{
+				relocateArea(index, positions[i * 2], positions[(i * 2) + 1]);
+			}
+		}
 	}
 
-	public void centerAndShowArea(int areaId)
+	/**
+	 * Change the outline of an area, keeping its shape
+	 * @param areaId
+	 * @param coords - as in the coords attribute of maps.xml
+	 * @return false if there is no such area or coords does not fit its
+	 *         shape, always true off the UI thread
+	 */
+	public boolean setAreaCoords(final int areaId, float... coords)
 	{
-		Area a = mIdToArea.get(areaId);
-		if (a != null) {
-			centerAndShowArea(a.getName(),areaId);
+		if (!isUiThread())
+		{
+			final float[] c = coords.clone();
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					setAreaCoords(areaId, c);
+				}
+			});
+			return true;
 		}
+		ensureAreas();
+		int index = mAreas.indexOfId(areaId);
+		if (index < 0)
+		{
+			return false;
+		}
+		beforeAreaChange(index);
+		boolean changed = mAreas.setCoords(index, coords, 0, coords.length);
+		afterAreaChange(index);
+		return changed;
 	}
 
-	public String getAreaAttribute(int areaId, String key)
+	int insertArea(int areaId, byte shape, String name, float[] coords)
 	{
-		String value = null;
-		Area a = mIdToArea.get(areaId);
-		if (a != null)
+		if (areaId == 0 || shape < 0 || mAreas.indexOfId(areaId) >= 0)
 		{
-			value = a.getValue(key);
+			return -1;
 		}
-		return value;
+		int index = mAreas.add(shape, areaId, name, coords, 0, coords.length);
+		if (index >= 0)
+		{
+			onAreaAdded(index);
+		}
+		return index;
 	}
 
-	/**
-	 * initialize the view
+	/*
+	 * bring the indexes and caches up to date with a new area
 	 */
-	private void init()
+	void onAreaAdded(int index)
 	{
-		// set up paint objects
-		initDrawingTools();
+		indexArea(index);
+		if (mAreaGrid != null)
+		{
+			mAreaGrid.add(index);
+		}
+		if (mDecorationOverlay != null)
+		{
+			mDecorationOverlay.addArea(index);
+		}
+		addAreaDirty(index);
+		mAreaVersion++;
+		scheduleInputFrame();
+	}
 
-		// create a scroller for flinging
-		mScroller = new Scroller(getContext());
+	/*
+	 * remove the area at index and everything attached to it
+	 */
+	void deleteArea(int index)
+	{
+		int id = mAreas.mIds[index];
+		addAreaDirty(index);
+		Bubble b = mBubbleMap.get(id);
+		if (b != null)
+		{
+			b.addDirtyBounds(mPendingDirty);
+			mBubbleMap.remove(id);
+		}
+		if (mLabels.remove(id))
+		{
+			mPendingRedraw = true;
+		}
+		unindexArea(index);
+		if (mAreaGrid != null)
+		{
+			mAreaGrid.remove(index);
+		}
+		if (mDecorationOverlay != null)
+		{
+			mDecorationOverlay.removeArea(index);
+		}
+		if (mPathCache != null)
+		{
+			mPathCache.remove(index);
+		}
+		mAreaObjects.remove(index);
+		mLod.invalidate(index);
+		mVectorPaths.invalidate(index);
+		if (index < mAreaStyles.mFill.length)
+		{
+			mAreaStyles.set(index, 0, 0);
+		}
+		if (mAreaIcons != null && index < mAreaIcons.length)
+		{
+			mAreaIcons[index] = -1;
+		}
+		mAreas.remove(index);
+		mAreaVersion++;
+		scheduleInputFrame();
+	}
 
-		// get some default values from the system for touch/drag/fling
-		final ViewConfiguration configuration = ViewConfiguration
-			.get(getContext());
-		mTouchSlop = configuration.getScaledTouchSlop();
-		mMinimumVelocity = configuration.getScaledMinimumFlingVelocity();
-		mMaximumVelocity = configuration.getScaledMaximumFlingVelocity();
+	void relocateArea(int index, float x, float y)
+	{
+		beforeAreaChange(index);
+		mAreas.offset(index, x - mAreas.getOriginX(index), y - mAreas.getOriginY(index));
+		afterAreaChange(index);
+	}
 
-		//find out the screen density
-		densityFactor = getResources().getDisplayMetrics().density;
+	/*
+	 * the geometry of the area at index is about to change
+	 */
+	void beforeAreaChange(int index)
+	{
+		addAreaDirty(index);
+		if (mDecorationOverlay != null)
+		{
+			mDecorationOverlay.removeArea(index);
+		}
+		// while the cache can still size the old path
+		if (mPathCache != null)
+		{
+			mPathCache.remove(index);
+		}
+		mVectorPaths.invalidate(index);
 	}
 
 	/*
-	 * These methods will be called when images or drawables are set
-	 * in the XML for the view.  We handle either bitmaps or drawables
-	 * @see android.widget.ImageView#setImageBitmap(android.graphics.Bitmap)
+	 * the geometry of the area at index changed, update what depends on it
+	 * and redraw its old and new place on the next frame
 	 */
-	@Override
-	public void setImageBitmap(Bitmap bm)
+	void afterAreaChange(int index)
 	{
-		if (mImage==mOriginal)
+		if (mAreaGrid != null)
 		{
-			mOriginal=null;
+			mAreaGrid.update(index);
 		}
-		else
+		if (mDecorationOverlay != null)
 		{
-			mOriginal.recycle();
-			mOriginal=null;
+			mDecorationOverlay.addArea(index);
 		}
-		if (mImage != null)
+		mLod.invalidate(index);
+		int id = mAreas.mIds[index];
+		Bubble b = mBubbleMap.get(id);
+		if (b != null)
 		{
-			mImage.recycle();
-			mImage=null;
+			b.addDirtyBounds(mPendingDirty);
+			b.init(b._text, mAreas.getOriginX(index), mAreas.getOriginY(index));
+			b.addDirtyBounds(mPendingDirty);
 		}
-		mImage = bm;
-		mOriginal = bm;
-		mImageHeight = mImage.getHeight();
-		mImageWidth = mImage.getWidth();
-		mAspect = (float)mImageWidth / mImageHeight;
-		setInitialImageBounds();
+		if (mLabels.onAreaMoved(id))
+		{
+			mPendingRedraw = true;
+		}
+		addAreaDirty(index);
+		mAreaVersion++;
+		scheduleInputFrame();
 	}
 
-	@Override
-	public void setImageResource(int resId)
+	/*
+	 * add the view rect covered by an area, its outline, decoration and
+	 * icon to the region redrawn on the next frame
+	 */
+	void addAreaDirty(int index)
 	{
-		final String imageKey = String.valueOf(resId);
-		BitmapHelper bitmapHelper = BitmapHelper.getInstance();
-		Bitmap bitmap = bitmapHelper.getBitmapFromMemCache(imageKey);
-
-		// 1 is the default setting, powers of 2 used to decrease image quality (and memory consumption)
-		// TODO: enable variable inSampleSize for low-memory devices
-		options = new BitmapFactory.Options();
-		options.inSampleSize = 1;
-
-		if (bitmap == null)
+		mAreas.getBounds(index, mAreaBounds);
+		float pad = mHighlightStrokePaint.getStrokeWidth() + 1;
+		mPendingDirty.union((int) Math.floor((mAreaBounds.left * mResizeFactorX) + mScrollLeft - pad),
+			(int) Math.floor((mAreaBounds.top * mResizeFactorY) + mScrollTop - pad),
+			(int) Math.ceil((mAreaBounds.right * mResizeFactorX) + mScrollLeft + pad),
+			(int) Math.ceil((mAreaBounds.bottom * mResizeFactorY) + mScrollTop + pad));
+		Bitmap d = mAreas.getDecoration(index);
+		if (d != null)
 		{
-			bitmap = BitmapFactory.decodeResource(getResources(), resId, options);
-			bitmapHelper.addBitmapToMemoryCache(imageKey, bitmap);
+			int x = (int) (getDecorationX(index) + mScrollLeft);
+			int y = (int) (getDecorationY(index) + mScrollTop);
+			mPendingDirty.union(x, y, x + d.getWidth() + 1, y + d.getHeight() + 1);
+		}
+		if (getIconBounds(index, mIconDst, mScrollLeft, mScrollTop))
+		{
+			mPendingDirty.union((int) mIconDst.left, (int) mIconDst.top,
+				(int) Math.ceil(mIconDst.right), (int) Math.ceil(mIconDst.bottom));
 		}
-		setImageBitmap(bitmap);
 	}
 
 	/*
-		setImageDrawable() is called by Android when the android:src attribute is set.
-		To avoid this and use the more flexible setImageResource(),
-		it is advised to omit the android:src attribute and call setImageResource() directly from code.
+	 * the areas changed outside the run time mutation calls, e.g. a map
+	 * was loaded
 	 */
-	@Override
-	public void setImageDrawable(Drawable drawable) {
-		if (drawable instanceof BitmapDrawable) {
-			BitmapDrawable bd = (BitmapDrawable) drawable;
-			setImageBitmap(bd.getBitmap());
+	void onAreasChanged()
+	{
+		mAreaVersion++;
+		if (mSnapshotsEnabled)
+		{
+			scheduleInputFrame();
 		}
 	}
 
 	/**
-	 * setup the paint objects for drawing bubbles
+	 * Publish an immutable copy of the areas after every frame in which
+	 * they changed, for reading them on other threads, see
+	 * getAreaSnapshot.  When off (the default) nothing is copied.  Call on
+	 * the UI thread.
+	 * @param enabled
 	 */
-	private void initDrawingTools() {
-		textPaint = new Paint();
-		textPaint.setColor(0xFF000000);
-		textPaint.setTextSize(30);
-		textPaint.setTypeface(Typeface.SERIF);
-		textPaint.setTextAlign(Paint.Align.CENTER);
-		textPaint.setAntiAlias(true);
+	public void setAreaSnapshotsEnabled(boolean enabled)
+	{
+		mSnapshotsEnabled = enabled;
+		if (enabled)
+		{
+			ensureAreas();
+			publishAreaSnapshot();
+		}
+		else
+		{
+			mAreaSnapshot = null;
+		}
+	}
 
-		textOutlinePaint = new Paint();
-		textOutlinePaint.setColor(0xFF000000);
-		textOutlinePaint.setTextSize(18);
-		textOutlinePaint.setTypeface(Typeface.SERIF);
-		textOutlinePaint.setTextAlign(Paint.Align.CENTER);
-		textOutlinePaint.setStyle(Paint.Style.STROKE);
-		textOutlinePaint.setStrokeWidth(2);
+	/**
+	 * The areas as of the last frame, safe to use on any thread without
+	 * locking.  Keep calling this for newer versions, a snapshot never
+	 * changes.
+	 * @return the latest snapshot, null unless enabled
+	 */
+	public AreaSnapshot getAreaSnapshot()
+	{
+		return mAreaSnapshot;
+	}
 
-		bubblePaint=new Paint();
-		bubblePaint.setColor(0xFFFFFFFF);
-		bubbleShadowPaint=new Paint();
-		bubbleShadowPaint.setColor(0xFF000000);
+	void publishAreaSnapshot()
+	{
+		mAreaSnapshot = new AreaSnapshot(mAreas.snapshot(), mAreaVersion);
+	}
 
+	boolean isUiThread()
+	{
+		return Looper.myLooper() == Looper.getMainLooper();
 	}
 
 	/*
-	 * Called by the scroller when flinging
-	 * @see android.view.View#computeScroll()
+	 * run a change on the UI thread, after those queued before it
 	 */
-	@Override
-	public void computeScroll() {
-		if (mScroller.computeScrollOffset()) {
-			int oldX = mScrollLeft;
-			int oldY = mScrollTop;
-
-			int x = mScroller.getCurrX();
-			int y = mScroller.getCurrY();
-
-			if (oldX != x) {
-				moveX(x-oldX);
-			}
-			if (oldY != y) {
-				moveY(y-oldY);
-			}
+	void queueEdit(Runnable edit)
+	{
+		mQueuedEdits.add(edit);
+		if (mEditsPosted.compareAndSet(false, true))
+		{
+			// not View.post, which loses runnables posted from other
+			// threads while the view is detached
+			sMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					applyQueuedEdits();
+				}
+			});
 		}
 	}
 
-	@Override
-	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec)
+	void applyQueuedEdits()
 	{
-		int widthMode = MeasureSpec.getMode(widthMeasureSpec);
-		int widthSize = MeasureSpec.getSize(widthMeasureSpec);
-
-		int heightMode = MeasureSpec.getMode(heightMeasureSpec);
-		int heightSize = MeasureSpec.getSize(heightMeasureSpec);
-
-		int chosenWidth = chooseDimension(widthMode, widthSize);
-		int chosenHeight = chooseDimension(heightMode, heightSize);
-
-		setMeasuredDimension(chosenWidth, chosenHeight);
+		mEditsPosted.set(false);
+		Runnable edit;
+		while ((edit = mQueuedEdits.poll()) != null)
+		{
+			edit.run();
+		}
 	}
 
-	private int chooseDimension(int mode, int size) {
-		if (mode == MeasureSpec.AT_MOST || mode == MeasureSpec.EXACTLY)
+	/**
+	 * Add a layer showing another map from maps.xml over the image.  The
+	 * layer is hidden until MapLayer.setVisible(true), which loads it.
+	 * Taps on its areas are reported to OnLayerClickedHandler.onLayerAreaClicked.
+	 * @param map - the name of the map
+	 * @param priority - layers of higher priority are hit tested first and
+	 *                   drawn on top, the view's own map has priority 0
+	 * @return the layer
+	 */
+	public MapLayer addLayer(String map, int priority)
+	{
+		MapLayer layer = new MapLayer(this, map, priority);
+		if (mLayers == null)
 		{
-			return size;
+			mLayers = new ArrayList<MapLayer>();
 		}
-		else
+		mLayers.add(layer);
+		return layer;
+	}
+
+	public void removeLayer(MapLayer layer)
+	{
+		if (mLayers != null && mLayers.remove(layer))
 		{
-			// (mode == MeasureSpec.UNSPECIFIED)
-			return getPreferredSize();
+			layer.setVisible(false);
+			onLayersChanged();
 		}
 	}
 
-
-	/**
-	 * set the initial bounds of the image
+	/*
+	 * a layer was shown, hidden or changed priority
 	 */
-	void setInitialImageBounds()
+	void onLayersChanged()
 	{
-		if (mFitImageToScreen)
+		int count = 0;
+		if (mLayers != null)
 		{
-			setInitialImageBoundsFitImage();
+			for (MapLayer layer : mLayers)
+			{
+				if (layer.mVisible)
+				{
+					count++;
+				}
+			}
 		}
-		else
+		MapLayer[] visible = count == 0 ? NO_LAYERS : new MapLayer[count];
+		int n = 0;
+		for (int l = 0; n < count; l++)
 		{
-			setInitialImageBoundsFillScreen();
+			MapLayer layer = mLayers.get(l);
+			if (!layer.mVisible)
+			{
+				continue;
+			}
+			// insert by descending priority, equal priorities keep the
+			// order the layers were added in
+			int j = n - 1;
+			while (j >= 0 && visible[j].mPriority < layer.mPriority)
+			{
+				visible[j + 1] = visible[j];
+				j--;
+			}
+			visible[j + 1] = layer;
+			n++;
 		}
+		mVisibleLayers = visible;
+		invalidate();
 	}
 
-	/**
-	 * setInitialImageBoundsFitImage sets the initial image size to match the
-	 * screen size.  aspect ratio may be broken
+	/*
+	 * find the area at x, y in image coordinates, trying the visible layers
+	 * and the view's own areas (priority 0) by descending priority.  Sets
+	 * mHitLayer to the layer of the area, null for the view's own
+	 * @return the area id, 0 if none
 	 */
-	void setInitialImageBoundsFitImage()
+	int hitTestAreas(float x, float y)
 	{
-		if (mImage != null)
+		mHitLayer = null;
+		int level = getLodLevel();
+		boolean ownTested = false;
+		for (MapLayer layer : mVisibleLayers)
 		{
-			if (mViewWidth > 0)
+			if (!ownTested && layer.mPriority <= 0)
 			{
-				mMinHeight = mViewHeight;
-				mMinWidth = mViewWidth;
-				mMaxWidth = (int)(mMinWidth * mMaxSize);
-				mMaxHeight = (int)(mMinHeight * mMaxSize);
-
-				mScrollTop = 0;
-				mScrollLeft = 0;
-				scaleBitmap(mMinWidth, mMinHeight);
+				ownTested = true;
+				int i = getAreaGrid().hitTest(x, y, mLod, level);
+				if (i >= 0)
+				{
+					return mAreas.mIds[i];
+				}
+			}
+			int id = layer.hitTest(x, y, level);
+			if (id != 0)
+			{
+				mHitLayer = layer;
+				return id;
+			}
+		}
+		if (!ownTested)
+		{
+			int i = getAreaGrid().hitTest(x, y, mLod, level);
+			if (i >= 0)
+			{
+				return mAreas.mIds[i];
 			}
 		}
+		return 0;
 	}
 
 	/**
-	 * setInitialImageBoundsFillScreen sets the initial image size to so that there
-	 * is no uncovered area of the device
+	 * @return the level of mLod matching the current zoom, -1 for the full
+	 *         outlines
 	 */
-	void setInitialImageBoundsFillScreen()
+	int getLodLevel()
 	{
-		if (mImage != null)
-		{
-			if (mViewWidth > 0)
-			{
-				boolean resize=false;
+		return AreaLod.levelFor(Math.max(mResizeFactorX, mResizeFactorY));
+	}
 
-				int newWidth=mImageWidth;
-				int newHeight=mImageHeight;
+	AreaGrid getAreaGrid()
+	{
+		if (mAreaGrid == null)
+		{
+			mAreaGrid = new AreaGrid(mAreas);
+		}
+		return mAreaGrid;
+	}
 
-				// The setting of these max sizes is very arbitrary
-				// Need to find a better way to determine max size
-				// to avoid attempts too big a bitmap and throw OOM
-				if (mMinWidth==-1)
-				{
-					// set minimums so that the largest
-					// direction we always filled (no empty view space)
-					// this maintains initial aspect ratio
-					if (mViewWidth > mViewHeight)
-					{
-						mMinWidth = mViewWidth;
-						mMinHeight = (int)(mMinWidth/mAspect);
-					} else {
-						mMinHeight = mViewHeight;
-						mMinWidth = (int)(mAspect*mViewHeight);
-					}
-					mMaxWidth = (int)(mMinWidth * 1.5f);
-					mMaxHeight = (int)(mMinHeight * 1.5f);
+	public void addBubble(final String text, final int areaId )
+	{
+		if (!isUiThread())
+		{
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					addBubble(text, areaId);
 				}
+			});
+			return;
+		}
+		if (mBubbleMap.get(areaId) == null)
+		{
+			Bubble b = new Bubble(text,areaId);
+			mBubbleMap.put(areaId,b);
+		}
+	}
 
-				if (newWidth < mMinWidth) {
-					newWidth = mMinWidth;
-					newHeight = (int) (((float) mMinWidth / mImageWidth) * mImageHeight);
-					resize = true;
-				}
-				if (newHeight < mMinHeight) {
-					newHeight = mMinHeight;
-					newWidth = (int) (((float) mMinHeight / mImageHeight) * mImageWidth);
-					resize = true;
+	public void showBubble(final String text, final int areaId)
+	{
+		if (!isUiThread())
+		{
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					showBubble(text, areaId);
 				}
+			});
+			return;
+		}
+		invalidateBubbles();
+		mBubbleMap.clear();
+		addBubble(text,areaId);
+		invalidateBubbles();
+	}
 
-				mScrollTop = 0;
-				mScrollLeft = 0;
-
-				// scale the bitmap
-				if (resize) {
-					scaleBitmap(newWidth, newHeight);
-				} else {
-					mExpandWidth=newWidth;
-					mExpandHeight=newHeight;
-
-					mResizeFactorX = ((float) newWidth / mImageWidth);
-					mResizeFactorY = ((float) newHeight / mImageHeight);
-					mRightBound = 0 - (mExpandWidth - mViewWidth);
-					mBottomBound = 0 - (mExpandHeight - mViewHeight);
+	public void showBubble(final int areaId)
+	{
+		if (!isUiThread())
+		{
+			queueEdit(new Runnable() {
+				@Override
+				public void run() {
+					showBubble(areaId);
 				}
-			}
+			});
+			return;
+		}
+		invalidateBubbles();
+		mBubbleMap.clear();
+		Area a = getArea(areaId);
+		if (a != null)
+		{
+			addBubble(a.getName(),areaId);
 		}
+		invalidateBubbles();
 	}
 
 	/**
-	 * Set the image to new width and height
-	 * create a new scaled bitmap and dispose of the previous one
-	 * recalculate scaling factor and right and bottom bounds
-	 * @param newWidth
-	 * @param newHeight
+	 * invalidate only the part of the view covered by open bubbles
 	 */
-	public void scaleBitmap(int newWidth, int newHeight) {
-		// Technically since we always keep aspect ratio intact
-		// we should only need to check one dimension.
-		// Need to investigate and fix
-		if ((newWidth > mMaxWidth) || (newHeight > mMaxHeight)) {
-			newWidth = mMaxWidth;
-			newHeight = mMaxHeight;
+	void invalidateBubbles()
+	{
+		mDirty.setEmpty();
+		for (int i = 0; i < mBubbleMap.size(); i++)
+		{
+			Bubble b = mBubbleMap.valueAt(i);
+			if (b != null)
+			{
+				b.addDirtyBounds(mDirty);
+			}
 		}
-		if ((newWidth < mMinWidth) || (newHeight < mMinHeight)) {
-			newWidth = mMinWidth;
-			newHeight = mMinHeight;
+		if (!mDirty.isEmpty())
+		{
+			invalidate(mDirty);
 		}
+	}
 
-		if ((newWidth != mExpandWidth) || (newHeight!=mExpandHeight)) {
-			// NOTE: depending on the image being used, it may be
-			//       better to keep the original image available and
-			//       use those bits for resize.  Repeated grow/shrink
-			//       can render some images visually non-appealing
-			//       see comments at top of file for mScaleFromOriginal
-			// try to create a new bitmap
-			// If you get a recycled bitmap exception here, check to make sure
-			// you are not setting the bitmap both from XML and in code
-			Bitmap newbits = Bitmap.createScaledBitmap(mScaleFromOriginal ? mOriginal:mImage, newWidth,
-				newHeight, true);
-			// if successful, fix up all the tracking variables
-			if (newbits != null) {
-				if (mImage!=mOriginal) {
-					mImage.recycle();
-				}
-				mImage = newbits;
-				mExpandWidth=newWidth;
-				mExpandHeight=newHeight;
-				mResizeFactorX = ((float) newWidth / mImageWidth);
-				mResizeFactorY = ((float) newHeight / mImageHeight);
-
-				mRightBound = mExpandWidth>mViewWidth ? 0 - (mExpandWidth - mViewWidth) : 0;
-				mBottomBound = mExpandHeight>mViewHeight ? 0 - (mExpandHeight - mViewHeight) : 0;
-			}
+	/**
+	 * Add a label showing the area name.  Unlike bubbles, any number of
+	 * labels can be shown; labels that would overlap a label of higher
+	 * priority are hidden until zooming makes room for them.
+	 * @param areaId
+	 * @param priority - higher priority labels are placed first
+	 */
+	public void addLabel(int areaId, int priority)
+	{
+		Area a = getArea(areaId);
+		if (a != null && a.getName() != null)
+		{
+			addLabel(areaId, a.getName(), priority);
 		}
 	}
 
-	void resizeBitmap( int amount ) {
-		int adjustWidth = amount;
-		int adjustHeight = (int)(adjustWidth / mAspect);
-		scaleBitmap( mExpandWidth+adjustWidth, mExpandHeight+adjustHeight);
+	public void addLabel(int areaId, String text, int priority)
+	{
+		mLabels.add(areaId, text, priority);
+		invalidate();
 	}
 
-	/**
-	 * watch for screen size changes and reset the background image
-	 */
-	@Override
-	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-		super.onSizeChanged(w, h, oldw, oldh);
+	public void removeLabel(int areaId)
+	{
+		mLabels.remove(areaId);
+		invalidate();
+	}
 
-		// save device height width, we use it a lot of places
-		mViewHeight = h;
-		mViewWidth = w;
+	public void clearLabels()
+	{
+		mLabels.clear();
+		invalidate();
+	}
 
-		// fix up the image
-		setInitialImageBounds();
+	public void centerArea( int areaId )
+	{
+		Area a = getArea(areaId);
+		if (a != null)
+		{
+			float x = a.getOriginX()*mResizeFactorX;
+			float y = a.getOriginY()*mResizeFactorY;
+			int left = (int)((mViewWidth/2)-x);
+			int top  = (int)((mViewHeight/2)-y);
+			moveTo(left,top);
+		}
 	}
 
-	private int getPreferredSize() {
-		return 300;
+	public void centerAndShowArea(String text, int areaId)
+	{
+		centerArea(areaId);
+		showBubble(text,areaId);
+	}
+
+	public void centerAndShowArea(int areaId)
+	{
+		Area a = getArea(areaId);
+		if (a != null) {
+			centerAndShowArea(a.getName(),areaId);
+		}
 	}
 
 	/**
-	 * the onDraw routine when we are using a background image
-	 *
-	 * @param canvas
+	 * Set a provider for area decorations.  Decorations are requested on a
+	 * background thread as areas come into view, and ahead of time for the
+	 * areas a fling is heading towards.
+	 * @param provider - null to stop loading decorations
 	 */
-	protected void drawMap(Canvas canvas)
+	public void setDecorationProvider(DecorationProvider provider)
 	{
-		canvas.save();
-		if (mImage != null)
+		if (mPrefetcher != null)
 		{
-			if (!mImage.isRecycled())
-			{
-				canvas.drawBitmap(mImage, mScrollLeft, mScrollTop, null);
+			mPrefetcher.cancel();
+		}
+		else if (provider != null)
+		{
+			mPrefetcher = new FlingPrefetcher(this);
+		}
+		mDecorationProvider = provider;
+		invalidate();
+	}
+
+	/**
+	 * Cache the area decorations for the current zoom in an offscreen
+	 * layer so that panning replays it instead of drawing every decoration.
+	 * drawLocations then replays the cache instead of drawing per area.
+	 * @param enabled
+	 */
+	public void setDecorationCacheEnabled(boolean enabled)
+	{
+		if (enabled && mDecorationOverlay == null)
+		{
+			mDecorationOverlay = new DecorationOverlay(this);
+		}
+		else if (!enabled)
+		{
+			mDecorationOverlay = null;
+		}
+		invalidate();
+	}
+
+	/**
+	 * Set the atlas that area icons are drawn from
+	 * @param atlas
+	 */
+	public void setDecorationAtlas(DecorationAtlas atlas)
+	{
+		mDecorationAtlas = atlas;
+		if (mDecorationOverlay != null)
+		{
+			mDecorationOverlay.invalidateAll();
+		}
+		invalidate();
+	}
+
+	/**
+	 * Mark an area with an icon from the decoration atlas
+	 * @param areaId
+	 * @param icon - index into the atlas, -1 to remove the icon
+	 */
+	public void setAreaIcon(int areaId, int icon)
+	{
+		Area a = getArea(areaId);
+		if (a != null)
+		{
+			invalidateIcon(a._index);
+			storeAreaIcon(a, icon);
+			invalidateIcon(a._index);
+			if (mDecorationOverlay != null)
+			{
+				mDecorationOverlay.invalidateArea(a._index);
+			}
+		}
+	}
+
+	/**
+	 * Mark many areas at once, the view is redrawn once
+	 * @param areaIds
+	 * @param icons - icon index for the area at the same position in areaIds
+	 */
+	public void setAreaIcons(int[] areaIds, int[] icons)
+	{
+		for (int i = 0; i < areaIds.length; i++)
+		{
+			Area a = getArea(areaIds[i]);
+			if (a != null)
+			{
+				storeAreaIcon(a, icons[i]);
+				if (mDecorationOverlay != null)
+				{
+					mDecorationOverlay.invalidateArea(a._index);
+				}
+			}
+		}
+		invalidate();
+	}
+
+	private void storeAreaIcon(Area a, int icon)
+	{
+		if (mAreaIcons == null || mAreaIcons.length <= a._index)
+		{
+			int oldLength = mAreaIcons == null ? 0 : mAreaIcons.length;
+			int[] icons = new int[Math.max(mAreas.size(), a._index + 1)];
+			if (mAreaIcons != null)
+			{
+				System.arraycopy(mAreaIcons, 0, icons, 0, oldLength);
+			}
+			for (int i = oldLength; i < icons.length; i++)
+			{
+				icons[i] = -1;
+			}
+			mAreaIcons = icons;
+		}
+		mAreaIcons[a._index] = icon;
+	}
+
+	/**
+	 * Fill and/or outline an area
+	 * @param areaId
+	 * @param fillColor - ARGB fill colour, 0 for no fill
+	 * @param strokeColor - ARGB outline colour, 0 for no outline
+	 */
+	public void setAreaHighlight(int areaId, int fillColor, int strokeColor)
+	{
+		Area a = getArea(areaId);
+		if (a != null)
+		{
+			mAreaStyles.set(a._index, fillColor, strokeColor);
+			invalidateArea(a);
+		}
+	}
+
+	/**
+	 * Style many areas at once, for example to colour a choropleth map from
+	 * live data.  Styles are written straight into the per-area colour
+	 * table and the view is redrawn once.
+	 * @param areaIds
+	 * @param fillColors - fill for the area at the same position in areaIds
+	 * @param strokeColors - outline for each area, may be null for none
+	 */
+	public void setAreaHighlights(int[] areaIds, int[] fillColors, int[] strokeColors)
+	{
+		mAreaStyles.ensureCapacity(mAreas.size());
+		for (int i = 0; i < areaIds.length; i++)
+		{
+			Area a = getArea(areaIds[i]);
+			if (a != null)
+			{
+				mAreaStyles.set(a._index, fillColors[i], strokeColors == null ? 0 : strokeColors[i]);
+			}
+		}
+		invalidate();
+	}
+
+	/**
+	 * Set the styles that setAreaStyleIndices refers to
+	 * @param fillColors
+	 * @param strokeColors - may be null for no outlines, styles past its
+	 *        end have no outline
+	 */
+	public void setStylePalette(int[] fillColors, int[] strokeColors)
+	{
+		mStyleFill = fillColors.clone();
+		// one stroke per fill so that a style index is valid for both
+		mStyleStroke = new int[fillColors.length];
+		if (strokeColors != null)
+		{
+			System.arraycopy(strokeColors, 0, mStyleStroke, 0, Math.min(strokeColors.length, fillColors.length));
+		}
+	}
+
+	/**
+	 * Style many areas at once by index into the style palette
+	 * @param areaIds
+	 * @param styles - palette index for each area, -1 to clear its style
+	 */
+	public void setAreaStyleIndices(int[] areaIds, int[] styles)
+	{
+		mAreaStyles.ensureCapacity(mAreas.size());
+		for (int i = 0; i < areaIds.length; i++)
+		{
+			Area a = getArea(areaIds[i]);
+			if (a != null)
+			{
+				int style = styles[i];
+				if (style >= 0 && style < mStyleFill.length)
+				{
+					mAreaStyles.set(a._index, mStyleFill[style], mStyleStroke[style]);
+				}
+				else
+				{
+					mAreaStyles.set(a._index, 0, 0);
+				}
+			}
+		}
+		invalidate();
+	}
+
+	public void clearAreaHighlight(int areaId)
+	{
+		setAreaHighlight(areaId, 0, 0);
+	}
+
+	public void clearAreaHighlights()
+	{
+		mAreaStyles.clear();
+		invalidate();
+	}
+
+	/**
+	 * set the outline width in pixels, it stays the same at every zoom
+	 * @param width
+	 */
+	public void setAreaStrokeWidth(float width)
+	{
+		mHighlightStrokePaint.setStrokeWidth(width);
+		invalidate();
+	}
+
+	/*
+	 * invalidate the view rect covered by an area
+	 */
+	void invalidateArea(Area a)
+	{
+		a.getBounds(mAreaBounds);
+		float pad = mHighlightStrokePaint.getStrokeWidth() + 1;
+		invalidate((int) Math.floor((mAreaBounds.left * mResizeFactorX) + mScrollLeft - pad),
+			(int) Math.floor((mAreaBounds.top * mResizeFactorY) + mScrollTop - pad),
+			(int) Math.ceil((mAreaBounds.right * mResizeFactorX) + mScrollLeft + pad),
+			(int) Math.ceil((mAreaBounds.bottom * mResizeFactorY) + mScrollTop + pad));
+	}
+
+	/**
+	 * Index the values of these attributes so that findAreasByAttribute
+	 * does not scan every area.  The indexes are built now and whenever a
+	 * map is loaded.
+	 * @param keys - attribute names
+	 */
+	public void setIndexedAttributes(String... keys)
+	{
+		mIndexedKeys = keys.clone();
+		mAttributeIndexes.clear();
+		ensureAreas();
+		buildIndexes();
+	}
+
+	/**
+	 * @param name - compared ignoring case
+	 * @return ids of the areas with this name
+	 */
+	public int[] findAreasByName(String name)
+	{
+		return getNameIndex().find(name);
+	}
+
+	/**
+	 * search as you type
+	 * @param prefix - compared ignoring case
+	 * @param limit - maximum number of results
+	 * @return ids of the areas whose name starts with prefix, by name
+	 */
+	public int[] findAreasByNamePrefix(String prefix, int limit)
+	{
+		return getNameIndex().findPrefix(prefix, limit);
+	}
+
+	/**
+	 * @param key - attribute name, see setIndexedAttributes
+	 * @param value - compared ignoring case
+	 * @return ids of the areas where attribute key has this value
+	 */
+	public int[] findAreasByAttribute(String key, String value)
+	{
+		return getAttributeIndex(key).find(value);
+	}
+
+	/**
+	 * @param key - attribute name, see setIndexedAttributes
+	 * @param prefix - compared ignoring case
+	 * @param limit - maximum number of results
+	 * @return ids of the areas where attribute key starts with prefix
+	 */
+	public int[] findAreasByAttributePrefix(String key, String prefix, int limit)
+	{
+		return getAttributeIndex(key).findPrefix(prefix, limit);
+	}
+
+	AreaIndex getNameIndex()
+	{
+		ensureAreas();
+		if (mNameIndex == null)
+		{
+			mNameIndex = buildIndex(null);
+		}
+		return mNameIndex;
+	}
+
+	/*
+	 * the index of an attribute, one built for this lookup only if the
+	 * attribute was not declared with setIndexedAttributes
+	 */
+	AreaIndex getAttributeIndex(String key)
+	{
+		ensureAreas();
+		AreaIndex index = mAttributeIndexes.get(key);
+		return index != null ? index : buildIndex(key);
+	}
+
+	/*
+	 * rebuild every index in use after areas were loaded
+	 */
+	void buildIndexes()
+	{
+		if (mNameIndex != null)
+		{
+			mNameIndex = buildIndex(null);
+		}
+		for (String key : mIndexedKeys)
+		{
+			mAttributeIndexes.put(key, buildIndex(key));
+		}
+	}
+
+	/*
+	 * index the names (key null) or the values of attribute key
+	 */
+	AreaIndex buildIndex(String key)
+	{
+		int count = mAreas.size();
+		String[] keys = new String[count];
+		for (int i = 0; i < count; i++)
+		{
+			keys[i] = key == null ? mAreas.mNames[i] : mAreas.getValue(i, key);
+		}
+		AreaIndex index = new AreaIndex();
+		index.build(keys, mAreas.mIds, count);
+		return index;
+	}
+
+	/*
+	 * add a single new area to the indexes in use
+	 */
+	void indexArea(int index)
+	{
+		int id = mAreas.mIds[index];
+		if (mNameIndex != null)
+		{
+			mNameIndex.add(mAreas.mNames[index], id);
+		}
+		for (int k = 0; k < mIndexedKeys.length; k++)
+		{
+			AreaIndex attributeIndex = mAttributeIndexes.get(mIndexedKeys[k]);
+			if (attributeIndex != null)
+			{
+				attributeIndex.add(mAreas.getValue(index, mIndexedKeys[k]), id);
+			}
+		}
+	}
+
+	/*
+	 * take an area out of the indexes in use, before it is removed
+	 */
+	void unindexArea(int index)
+	{
+		int id = mAreas.mIds[index];
+		if (mNameIndex != null)
+		{
+			mNameIndex.remove(mAreas.mNames[index], id);
+		}
+		for (int k = 0; k < mIndexedKeys.length; k++)
+		{
+			AreaIndex attributeIndex = mAttributeIndexes.get(mIndexedKeys[k]);
+			if (attributeIndex != null)
+			{
+				attributeIndex.remove(mAreas.getValue(index, mIndexedKeys[k]), id);
+			}
+		}
+	}
+
+	/*
+	 * set an attribute of the area at index, keeping its index current
+	 */
+	void setAreaValue(int index, String key, String value)
+	{
+		AreaIndex attributeIndex = mAttributeIndexes.get(key);
+		if (attributeIndex != null)
+		{
+			attributeIndex.remove(mAreas.getValue(index, key), mAreas.mIds[index]);
+			attributeIndex.add(value, mAreas.mIds[index]);
+		}
+		mAreas.addValue(index, key, value);
+		onAreasChanged();
+	}
+
+	public String getAreaAttribute(int areaId, String key)
+	{
+		String value = null;
+		Area a = getArea(areaId);
+		if (a != null)
+		{
+			value = a.getValue(key);
+		}
+		return value;
+	}
+
+	/**
+	 * initialize the view
+	 */
+	private void init()
+	{
+		// set up paint objects
+		initDrawingTools();
+
+		//find out the screen density
+		densityFactor = getResources().getDisplayMetrics().density;
+	}
+
+	/**
+	 * set up touch tracking and flinging on the first interaction, many
+	 * views (e.g. thumbnails in a list) are never touched
+	 */
+	void ensureInteraction()
+	{
+		if (mScroller != null)
+		{
+			return;
+		}
+		// create a scroller for flinging
+		mScroller = new Scroller(getContext());
+		mTouchPoints = new HashMap<Integer,TouchPoint>();
+
+		// get some default values from the system for touch/drag/fling
+		final ViewConfiguration configuration = ViewConfiguration
+			.get(getContext());
+		mTouchSlop = configuration.getScaledTouchSlop();
+		mMinimumVelocity = configuration.getScaledMinimumFlingVelocity();
+		mMaximumVelocity = configuration.getScaledMaximumFlingVelocity();
+	}
+
+	/**
+	 * Show a shared preview instead of an image of our own, for many small
+	 * maps in a list.  Nothing is decoded, scaled or parsed here and nothing
+	 * is allocated; the areas are created when first touched or looked up.
+	 * Zooming is off while a thumbnail is shown.
+	 * @param thumbnail - see MapThumbnail.get, null to show nothing
+	 */
+	public void setThumbnail(MapThumbnail thumbnail)
+	{
+		if (thumbnail == mThumbnail)
+		{
+			return;
+		}
+		cancelRefine();
+		if (mThumbnail == null)
+		{
+			// release the image of our own
+			if (mImage != mOriginal)
+			{
+				releaseImage(mImage);
+			}
+			releaseOriginal(mOriginal);
+		}
+		mThumbnail = thumbnail;
+		mVectorMode = false;
+		clearAreas();
+		if (thumbnail == null)
+		{
+			mImage = null;
+			mOriginal = null;
+		}
+		else
+		{
+			mImage = thumbnail.mBitmap;
+			mOriginal = thumbnail.mBitmap;
+			mImageWidth = thumbnail.mImageWidth;
+			mImageHeight = thumbnail.mImageHeight;
+			mAspect = (float)mImageWidth / mImageHeight;
+			mPendingModel = thumbnail.mModel;
+			setInitialImageBounds();
+		}
+		invalidate();
+	}
+
+	/*
+	 * These methods will be called when images or drawables are set
+	 * in the XML for the view.  We handle either bitmaps or drawables
+	 * @see android.widget.ImageView#setImageBitmap(android.graphics.Bitmap)
+	 */
+	@Override
+	public void setImageBitmap(Bitmap bm)
+	{
+		cancelRefine();
+		if (mThumbnail != null)
+		{
+			// shared, not ours to recycle
+			mThumbnail = null;
+			mImage = null;
+			mOriginal = null;
+		}
+		if ((mImage != null) && (mImage != mOriginal))
+		{
+			// a scaled copy of our own
+			releaseImage(mImage);
+		}
+		releaseOriginal(mOriginal);
+		mVectorMode = false;
+		mVectorPaths.clear();
+		mImage = bm;
+		mOriginal = bm;
+		mImageHeight = mImage.getHeight();
+		mImageWidth = mImage.getWidth();
+		mAspect = (float)mImageWidth / mImageHeight;
+		setInitialImageBounds();
+	}
+
+	@Override
+	public void setImageResource(int resId)
+	{
+		final String imageKey = String.valueOf(resId);
+		BitmapHelper bitmapHelper = BitmapHelper.getInstance();
+		Bitmap bitmap = bitmapHelper.getBitmapFromMemCache(imageKey);
+
+		// 1 is the default setting, powers of 2 used to decrease image quality (and memory consumption)
+		// TODO: enable variable inSampleSize for low-memory devices
+		options = new BitmapFactory.Options();
+		options.inSampleSize = 1;
+
+		if (bitmap == null)
+		{
+			Tracing.begin("ImageMap#decode");
+			try
+			{
+				bitmap = BitmapFactory.decodeResource(getResources(), resId, options);
+			}
+			finally
+			{
+				Tracing.end();
+			}
+			bitmapHelper.addBitmapToMemoryCache(imageKey, bitmap);
+		}
+		Tracing.begin("ImageMap#setImageBitmap");
+		try
+		{
+			setImageBitmap(bitmap);
+			mCachedOriginal = true;
+		}
+		finally
+		{
+			Tracing.end();
+		}
+	}
+
+	/**
+	 * Show a map that is only its areas, such as gridmap, without an image.
+	 * The current image is released and the areas are filled and outlined
+	 * from their geometry in the given colours, below the area styles and
+	 * layers.  Nothing is resampled on zoom, outlines stay sharp at any size
+	 * and memory grows with the number of vertices only.  The map is sized
+	 * to the extent of its areas.  setImageBitmap or a switch to an image
+	 * leaves this mode.
+	 * @param map - the name of the map in maps.xml
+	 * @param fillColor - ARGB fill of every area, 0 for none
+	 * @param strokeColor - ARGB outline of every area, 0 for none
+	 */
+	public void setVectorMap(String map, int fillColor, int strokeColor)
+	{
+		mVectorFillColor = fillColor;
+		mVectorStrokeColor = strokeColor;
+		switchTo(0, map, true);
+	}
+
+	/**
+	 * @return true while the map is drawn from the areas, see setVectorMap
+	 */
+	public boolean isVectorMap()
+	{
+		return mVectorMode;
+	}
+
+	/**
+	 * Show another map over the current image, see switchTo
+	 * @param map - the name of the map in maps.xml
+	 */
+	public void setMap(String map)
+	{
+		switchTo(0, map);
+	}
+
+	/**
+	 * Switch to another image and map.  Both are loaded in the background
+	 * while the current ones stay on screen, then swapped in together on
+	 * the UI thread, so no frame is drawn without an image or areas.  The
+	 * decode reuses the memory of a pooled bitmap of the same size where
+	 * it can, see BitmapPool.
+	 * @param resId - the image, 0 to keep the current one
+	 * @param map - the name of the map in maps.xml, null for no areas
+	 */
+	public void switchTo(int resId, String map)
+	{
+		switchTo(resId, map, false);
+	}
+
+	/*
+	 * switchTo, and show the map without an image if vector is set
+	 */
+	void switchTo(final int resId, final String map, final boolean vector)
+	{
+		final int generation = ++mSwitchGeneration;
+		final Resources res = getResources();
+		final Bitmap cached = resId != 0
+			? BitmapHelper.getInstance().getBitmapFromMemCache(String.valueOf(resId)) : null;
+		BackgroundExecutor.get().submit(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap decoded = null;
+				if ((resId != 0) && (cached == null)) {
+					Tracing.begin("ImageMap#decode");
+					try {
+						decoded = BitmapPool.decodeResource(res, resId);
+					} finally {
+						Tracing.end();
+					}
+				}
+				final Bitmap image = cached != null ? cached : decoded;
+				final boolean owned = decoded != null;
+				final MapModel model = map != null ? MapModel.get(res, map) : null;
+				sMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onSwitchLoaded(generation, image, owned, map, model, vector);
+					}
+				});
+			}
+		});
+	}
+
+	/*
+	 * swap the loaded image and areas in, all before the next frame
+	 */
+	void onSwitchLoaded(int generation, Bitmap image, boolean owned, String map, MapModel model,
+		boolean vector)
+	{
+		if (generation != mSwitchGeneration) {
+			// a newer switch replaces this one
+			if (owned) {
+				BitmapPool.put(image);
+			}
+			return;
+		}
+		Tracing.begin("ImageMap#switchTo");
+		try {
+			mapName = map;
+			clearAreas();
+			if (model != null) {
+				addAreas(model);
+			}
+			if (image != null) {
+				setImageBitmap(image);
+				mOwnsOriginal = owned;
+				// not decoded here, so it came from BitmapHelper
+				mCachedOriginal = !owned;
+			} else if (vector || mVectorMode) {
+				// sized to the new areas
+				showVectorMap();
+			}
+			invalidate();
+		} finally {
+			Tracing.end();
+		}
+	}
+
+	/*
+	 * drop the image and draw the areas instead, sized to their extent
+	 */
+	void showVectorMap()
+	{
+		cancelRefine();
+		if (mThumbnail != null)
+		{
+			mThumbnail = null;
+		}
+		else
+		{
+			if ((mImage != null) && (mImage != mOriginal))
+			{
+				releaseImage(mImage);
+			}
+			releaseOriginal(mOriginal);
+		}
+		mImage = null;
+		mOriginal = null;
+		mVectorMode = true;
+		mVectorPaths.clear();
+
+		float right = 1;
+		float bottom = 1;
+		for (int i = 0; i < mAreas.size(); i++)
+		{
+			if (!mAreas.isRemoved(i))
+			{
+				right = Math.max(right, mAreas.mBounds[(i * 4) + 2]);
+				bottom = Math.max(bottom, mAreas.mBounds[(i * 4) + 3]);
+			}
+		}
+		mImageWidth = (int) Math.ceil(right);
+		mImageHeight = (int) Math.ceil(bottom);
+		mAspect = (float)mImageWidth / mImageHeight;
+		setInitialImageBounds();
+	}
+
+	/*
+		setImageDrawable() is called by Android when the android:src attribute is set.
+		To avoid this and use the more flexible setImageResource(),
+		it is advised to omit the android:src attribute and call setImageResource() directly from code.
+	 */
+	@Override
+	public void setImageDrawable(Drawable drawable) {
+		if (drawable instanceof BitmapDrawable) {
+			BitmapDrawable bd = (BitmapDrawable) drawable;
+			setImageBitmap(bd.getBitmap());
+		}
+	}
+
+	/**
+	 * setup the paint objects for drawing bubbles
+	 */
+	private void initDrawingTools() {
+		textPaint = new Paint();
+		textPaint.setColor(0xFF000000);
+		textPaint.setTextSize(30);
+		textPaint.setTypeface(Typeface.SERIF);
+		textPaint.setTextAlign(Paint.Align.CENTER);
+		textPaint.setAntiAlias(true);
+
+		textOutlinePaint = new Paint();
+		textOutlinePaint.setColor(0xFF000000);
+		textOutlinePaint.setTextSize(18);
+		textOutlinePaint.setTypeface(Typeface.SERIF);
+		textOutlinePaint.setTextAlign(Paint.Align.CENTER);
+		textOutlinePaint.setStyle(Paint.Style.STROKE);
+		textOutlinePaint.setStrokeWidth(2);
+
+		bubblePaint=new Paint();
+		bubblePaint.setColor(0xFFFFFFFF);
+		bubbleShadowPaint=new Paint();
+		bubbleShadowPaint.setColor(0xFF000000);
+
+		mPreviewPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+		mHighlightFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mHighlightFillPaint.setStyle(Paint.Style.FILL);
+		mHighlightStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mHighlightStrokePaint.setStyle(Paint.Style.STROKE);
+		mHighlightStrokePaint.setStrokeWidth(2);
+
+	}
+
+	/*
+	 * Called by the scroller when flinging
+	 * @see android.view.View#computeScroll()
+	 */
+	@Override
+	public void computeScroll() {
+		if ((mScroller != null) && mScroller.computeScrollOffset()) {
+			int oldX = mScrollLeft;
+			int oldY = mScrollTop;
+
+			int x = mScroller.getCurrX();
+			int y = mScroller.getCurrY();
+
+			if ((oldX != x) || (oldY != y)) {
+				moveBy(x-oldX, y-oldY);
+			}
+		}
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec)
+	{
+		int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+		int widthSize = MeasureSpec.getSize(widthMeasureSpec);
+
+		int heightMode = MeasureSpec.getMode(heightMeasureSpec);
+		int heightSize = MeasureSpec.getSize(heightMeasureSpec);
+
+		int chosenWidth = chooseDimension(widthMode, widthSize);
+		int chosenHeight = chooseDimension(heightMode, heightSize);
+
+		setMeasuredDimension(chosenWidth, chosenHeight);
+	}
+
+	private int chooseDimension(int mode, int size) {
+		if (mode == MeasureSpec.AT_MOST || mode == MeasureSpec.EXACTLY)
+		{
+			return size;
+		}
+		else
+		{
+			// (mode == MeasureSpec.UNSPECIFIED)
+			return getPreferredSize();
+		}
+	}
+
+
+	/**
+	 * set the initial bounds of the image
+	 */
+	void setInitialImageBounds()
+	{
+		if (mThumbnail != null)
+		{
+			setInitialImageBoundsThumbnail();
+		}
+		else if (mFitImageToScreen)
+		{
+			setInitialImageBoundsFitImage();
+		}
+		else
+		{
+			setInitialImageBoundsFillScreen();
+		}
+	}
+
+	/**
+	 * setInitialImageBoundsFitImage sets the initial image size to match the
+	 * screen size.  aspect ratio may be broken
+	 */
+	void setInitialImageBoundsFitImage()
+	{
+		if ((mImage != null) || mVectorMode)
+		{
+			if (mViewWidth > 0)
+			{
+				mMinHeight = mViewHeight;
+				mMinWidth = mViewWidth;
+				applyMemoryBudget();
+
+				mScrollTop = 0;
+				mScrollLeft = 0;
+				if (mRestoreState != null) {
+					restoreState(mMinWidth, mMinHeight);
+				} else {
+					scaleBitmap(mMinWidth, mMinHeight);
+				}
+			}
+		}
+	}
+
+	/**
+	 * setInitialImageBoundsThumbnail stretches the thumbnail to the view
+	 * and disables zoom
+	 */
+	void setInitialImageBoundsThumbnail()
+	{
+		if (mViewWidth > 0)
+		{
+			mMinWidth = mViewWidth;
+			mMinHeight = mViewHeight;
+			mMaxWidth = mViewWidth;
+			mMaxHeight = mViewHeight;
+			mScrollTop = 0;
+			mScrollLeft = 0;
+			setExpandSize(mViewWidth, mViewHeight);
+		}
+	}
+
+	/**
+	 * setInitialImageBoundsFillScreen sets the initial image size to so that there
+	 * is no uncovered area of the device
+	 */
+	void setInitialImageBoundsFillScreen()
+	{
+		if ((mImage != null) || mVectorMode)
+		{
+			if (mViewWidth > 0)
+			{
+				boolean resize=false;
+
+				int newWidth=mImageWidth;
+				int newHeight=mImageHeight;
+
+				// the max sizes follow from mMaxSize and the memory
+				// that is free, see applyMemoryBudget
+				if (mMinWidth==-1)
+				{
+					// set minimums so that the largest
+					// direction we always filled (no empty view space)
+					// this maintains initial aspect ratio
+					if (mViewWidth > mViewHeight)
+					{
+						mMinWidth = mViewWidth;
+						mMinHeight = (int)(mMinWidth/mAspect);
+					} else {
+						mMinHeight = mViewHeight;
+						mMinWidth = (int)(mAspect*mViewHeight);
+					}
+					applyMemoryBudget();
+				}
+
+				if (newWidth < mMinWidth) {
+					newWidth = mMinWidth;
+					newHeight = (int) (((float) mMinWidth / mImageWidth) * mImageHeight);
+					resize = true;
+				}
+				if (newHeight < mMinHeight) {
+					newHeight = mMinHeight;
+					newWidth = (int) (((float) mMinHeight / mImageHeight) * mImageWidth);
+					resize = true;
+				}
+
+				mScrollTop = 0;
+				mScrollLeft = 0;
+
+				// scale the bitmap
+				if (mRestoreState != null) {
+					restoreState(newWidth, newHeight);
+				} else if (resize) {
+					scaleBitmap(newWidth, newHeight);
+				} else {
+					setExpandSize(newWidth, newHeight);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the image to new width and height
+	 * create a new scaled bitmap and dispose of the previous one
+	 * recalculate scaling factor and right and bottom bounds
+	 * @param newWidth
+	 * @param newHeight
+	 */
+	public void scaleBitmap(int newWidth, int newHeight) {
+		Tracing.begin("ImageMap#scaleBitmap");
+		try {
+			doScaleBitmap(newWidth, newHeight);
+		} finally {
+			Tracing.end();
+		}
+	}
+
+	private void doScaleBitmap(int newWidth, int newHeight) {
+		// Technically since we always keep aspect ratio intact
+		// we should only need to check one dimension.
+		// Need to investigate and fix
+		if ((newWidth > mMaxWidth) || (newHeight > mMaxHeight)) {
+			newWidth = mMaxWidth;
+			newHeight = mMaxHeight;
+		}
+		if ((newWidth < mMinWidth) || (newHeight < mMinHeight)) {
+			newWidth = mMinWidth;
+			newHeight = mMinHeight;
+		}
+
+		if (mVectorMode) {
+			// nothing to resample
+			setExpandSize(newWidth, newHeight);
+			return;
+		}
+		if ((newWidth != mExpandWidth) || (newHeight!=mExpandHeight)) {
+			// NOTE: depending on the image being used, it may be
+			//       better to keep the original image available and
+			//       use those bits for resize.  Repeated grow/shrink
+			//       can render some images visually non-appealing
+			//       see comments at top of file for mScaleFromOriginal
+			// try to create a new bitmap
+			// If you get a recycled bitmap exception here, check to make sure
+			// you are not setting the bitmap both from XML and in code
+			final FrameStats stats = mFrameStats;
+			long start = stats != null ? System.nanoTime() : 0;
+			Bitmap newbits;
+			try {
+				newbits = MemoryBudget.createScaledBitmap(mScaleFromOriginal ? mOriginal:mImage, newWidth,
+					newHeight);
+			} catch (OutOfMemoryError e) {
+				// stretch what we have and zoom no further than this
+				lowerZoomLimit(newWidth, newHeight);
+				setExpandSize(Math.min(newWidth, mMaxWidth), Math.min(newHeight, mMaxHeight));
+				applyScroll(0, 0);
+				return;
+			}
+			if (stats != null) {
+				stats.record(FrameStats.PHASE_SCALE, System.nanoTime() - start);
+				stats.mBitmapsCreated++;
+			}
+			// if successful, fix up all the tracking variables
+			if (newbits != null) {
+				if (mImage!=mOriginal) {
+					releaseImage(mImage);
+				}
+				mImage = newbits;
+				setExpandSize(newWidth, newHeight);
+			}
+		}
+	}
+
+	/*
+	 * recalculate scaling factor and right and bottom bounds for a new
+	 * scaled size
+	 */
+	void setExpandSize(int newWidth, int newHeight) {
+		mExpandWidth=newWidth;
+		mExpandHeight=newHeight;
+		mResizeFactorX = ((float) newWidth / mImageWidth);
+		mResizeFactorY = ((float) newHeight / mImageHeight);
+
+		mRightBound = mExpandWidth>mViewWidth ? 0 - (mExpandWidth - mViewWidth) : 0;
+		mBottomBound = mExpandHeight>mViewHeight ? 0 - (mExpandHeight - mViewHeight) : 0;
+	}
+
+	/*
+	 * Set the maximum zoom from mMaxSize, limited to what a bitmap in the
+	 * config we would scale to can take of the free memory.  Never
+	 * below the minimum or the size currently shown.
+	 */
+	void applyMemoryBudget() {
+		if ((mMinWidth <= 0) || (mMinHeight <= 0) || (mThumbnail != null)) {
+			return;
+		}
+		Bitmap source = mOriginal != null ? mOriginal : mImage;
+		float scale = mMaxSize;
+		if (source != null) {
+			long maxPixels = MemoryBudget.getMaxPixels(MemoryBudget.chooseConfig(source));
+			float budgetScale = (float) Math.sqrt((double) maxPixels / ((long) mMinWidth * mMinHeight));
+			scale = Math.min(scale, budgetScale);
+		}
+		scale = Math.max(1.0f, scale);
+		mMaxWidth = Math.max((int) (mMinWidth * scale), mExpandWidth);
+		mMaxHeight = Math.max((int) (mMinHeight * scale), mExpandHeight);
+	}
+
+	/*
+	 * a bitmap of this size could not be allocated, keep the zoom
+	 * limit safely below it
+	 */
+	void lowerZoomLimit(int failedWidth, int failedHeight) {
+		mMaxWidth = Math.max(mMinWidth, (failedWidth * 3) / 4);
+		mMaxHeight = Math.max(mMinHeight, (failedHeight * 3) / 4);
+	}
+
+	/*
+	 * zoom during a pinch: only the target size changes, drawMap
+	 * stretches the current bitmap until refineZoom replaces it
+	 * @return false if the size was already at the zoom limit
+	 */
+	boolean resizeBitmap( int amount ) {
+		int adjustWidth = amount;
+		int adjustHeight = (int)(adjustWidth / mAspect);
+		int newWidth = mExpandWidth+adjustWidth;
+		int newHeight = mExpandHeight+adjustHeight;
+		if ((newWidth > mMaxWidth) || (newHeight > mMaxHeight)) {
+			newWidth = mMaxWidth;
+			newHeight = mMaxHeight;
+		}
+		if ((newWidth < mMinWidth) || (newHeight < mMinHeight)) {
+			newWidth = mMinWidth;
+			newHeight = mMinHeight;
+		}
+		if ((newWidth != mExpandWidth) || (newHeight != mExpandHeight)) {
+			cancelRefine();
+			setExpandSize(newWidth, newHeight);
+			// keep the scroll position inside the new bounds
+			applyScroll(0, 0);
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * The pinch is over, resample the image at the final zoom off the UI
+	 * thread and swap it in when done.  The preview stays on screen until
+	 * then.
+	 */
+	void refineZoom() {
+		cancelRefine();
+		if (mImage == null || mThumbnail != null || mExpandWidth <= 0 || mExpandHeight <= 0) {
+			return;
+		}
+		if ((mImage.getWidth() == mExpandWidth) && (mImage.getHeight() == mExpandHeight)) {
+			return;
+		}
+		final Bitmap source = mScaleFromOriginal ? mOriginal : mImage;
+		final int width = mExpandWidth;
+		final int height = mExpandHeight;
+		final int generation = mRefineGeneration;
+		mRefineSources.add(source);
+		mRefineTask = BackgroundExecutor.get().submit(new Runnable() {
+			@Override
+			public void run() {
+				Bitmap scaled = null;
+				try {
+					scaled = MemoryBudget.createScaledBitmap(source, width, height);
+				} catch (OutOfMemoryError e) {
+					// keep showing the preview, onRefineDone
+					// lowers the zoom limit
+				}
+				final Bitmap result = scaled;
+				// not View.post, see queueEdit: a lost result would
+				// leak it and keep source from being recycled
+				sMainHandler.post(new Runnable() {
+					@Override
+					public void run() {
+						onRefineDone(source, result, generation, width, height);
+					}
+				});
+			}
+		});
+	}
+
+	/*
+	 * swap the refined bitmap in, unless another gesture or image
+	 * came along since it was started
+	 */
+	void onRefineDone(Bitmap source, Bitmap result, int generation, int width, int height) {
+		mRefineSources.remove(source);
+		if (!mRefineSources.contains(source) && mDeferredRecycle.remove(source)) {
+			// released while the task was reading it
+			source.recycle();
+		}
+		if (result == null) {
+			if (generation == mRefineGeneration) {
+				// did not fit, zoom back to what does
+				lowerZoomLimit(width, height);
+				if ((mExpandWidth > mMaxWidth) || (mExpandHeight > mMaxHeight)) {
+					setExpandSize(mMaxWidth, mMaxHeight);
+					applyScroll(0, 0);
+					invalidate();
+					refineZoom();
+				}
+			}
+			return;
+		}
+		if (generation != mRefineGeneration || width != mExpandWidth || height != mExpandHeight
+			|| mImage == null) {
+			if (result != source) {
+				BitmapPool.put(result);
+			}
+			return;
+		}
+		if (mImage != mOriginal) {
+			releaseImage(mImage);
+		}
+		mImage = result;
+		mRefineTask = null;
+		if (mFrameStats != null) {
+			mFrameStats.mBitmapsCreated++;
+		}
+		invalidate();
+	}
+
+	/*
+	 * a new gesture or image makes any running refinement pointless
+	 */
+	void cancelRefine() {
+		mRefineGeneration++;
+		if (mRefineTask != null) {
+			mRefineTask.cancel(false);
+			mRefineTask = null;
+		}
+	}
+
+	/*
+	 * recycle a bitmap we own, unless a refine task is still reading
+	 * it, in which case onRefineDone recycles it
+	 */
+	void recycleImage(Bitmap b) {
+		if (b != null) {
+			if (mRefineSources.contains(b)) {
+				mDeferredRecycle.add(b);
+			} else if (RetainedImages.isRetained(b)) {
+				// the view replacing this one may still take it
+			} else {
+				b.recycle();
+			}
+		}
+	}
+
+	/*
+	 * like recycleImage, for bitmaps this view created: their memory goes
+	 * to the bitmap pool for the next scale or decode of the same size
+	 */
+	void releaseImage(Bitmap b) {
+		if (b != null) {
+			if (mRefineSources.contains(b)) {
+				mDeferredRecycle.add(b);
+			} else if (!RetainedImages.isRetained(b)) {
+				BitmapPool.put(b);
+			}
+		}
+	}
+
+	/*
+	 * release the original image, pooled only if switchTo decoded it and
+	 * left alone if BitmapHelper holds it
+	 */
+	void releaseOriginal(Bitmap b) {
+		if (mCachedOriginal) {
+			// the next setImageResource or switchTo may take it again
+		} else if (mOwnsOriginal) {
+			releaseImage(b);
+		} else {
+			recycleImage(b);
+		}
+		mOwnsOriginal = false;
+		mCachedOriginal = false;
+	}
+
+	/*
+	 * Save zoom, the image point at the centre of the view and the open
+	 * bubbles.  On a configuration change the scaled bitmap is retained
+	 * for the view that replaces this one, see restoreState.
+	 */
+	@Override
+	protected Parcelable onSaveInstanceState() {
+		SavedState ss = new SavedState(super.onSaveInstanceState());
+		if (((mImage != null) || mVectorMode) && (mMinWidth > 0) && (mExpandWidth > 0)) {
+			ss.mZoomX = (float) mExpandWidth / mMinWidth;
+			ss.mZoomY = (float) mExpandHeight / mMinHeight;
+			ss.mCenterX = ((mViewWidth / 2f) - mScrollLeft) / mResizeFactorX;
+			ss.mCenterY = ((mViewHeight / 2f) - mScrollTop) / mResizeFactorY;
+			if ((mOriginal != null) && (mImage != mOriginal) && isChangingConfigurations()) {
+				// a late refinement must not recycle it under the new view
+				cancelRefine();
+				RetainedImages.retain(mOriginal, mImage);
+			}
+		} else if (mRestoreState != null) {
+			// saved again before the last restore was applied
+			ss.mZoomX = mRestoreState.mZoomX;
+			ss.mZoomY = mRestoreState.mZoomY;
+			ss.mCenterX = mRestoreState.mCenterX;
+			ss.mCenterY = mRestoreState.mCenterY;
+		}
+		int bubbles = mBubbleMap.size();
+		ss.mBubbleIds = new int[bubbles];
+		ss.mBubbleTexts = new String[bubbles];
+		for (int i = 0; i < bubbles; i++) {
+			ss.mBubbleIds[i] = mBubbleMap.keyAt(i);
+			ss.mBubbleTexts[i] = mBubbleMap.valueAt(i)._text;
+		}
+		return ss;
+	}
+
+	/*
+	 * true if our activity is saving state to be recreated at once, as
+	 * opposed to going into the background where no restore may follow
+	 */
+	boolean isChangingConfigurations() {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return false;
+		}
+		Context context = getContext();
+		while (context instanceof ContextWrapper) {
+			if (context instanceof Activity) {
+				return ((Activity) context).isChangingConfigurations();
+			}
+			context = ((ContextWrapper) context).getBaseContext();
+		}
+		return false;
+	}
+
+	@Override
+	protected void onRestoreInstanceState(Parcelable state) {
+		if (!(state instanceof SavedState)) {
+			super.onRestoreInstanceState(state);
+			return;
+		}
+		SavedState ss = (SavedState) state;
+		super.onRestoreInstanceState(ss.getSuperState());
+		mRestoreState = ss;
+		if (((mImage != null) || mVectorMode) && (mViewWidth > 0)) {
+			setInitialImageBounds();
+		}
+	}
+
+	/*
+	 * Apply the saved state on top of the initial size.  The retained
+	 * bitmap (or the one we have) is stretched to the saved zoom so the
+	 * first frame already shows it, refineZoom then rescales it off the
+	 * UI thread.
+	 */
+	void restoreState(int initialWidth, int initialHeight) {
+		SavedState ss = mRestoreState;
+		mRestoreState = null;
+		cancelRefine();
+		Bitmap retained = mOriginal != null ? RetainedImages.take(mOriginal) : null;
+		if ((retained != null) && (retained != mImage) && !retained.isRecycled()) {
+			if (mImage != mOriginal) {
+				releaseImage(mImage);
+			}
+			mImage = retained;
+		}
+		int width = Math.max(initialWidth, Math.min(mMaxWidth, (int) (mMinWidth * ss.mZoomX)));
+		int height = Math.max(initialHeight, Math.min(mMaxHeight, (int) (mMinHeight * ss.mZoomY)));
+		setExpandSize(width, height);
+		if (ss.mCenterX >= 0) {
+			mScrollLeft = (int) ((mViewWidth / 2f) - (ss.mCenterX * mResizeFactorX));
+			mScrollTop = (int) ((mViewHeight / 2f) - (ss.mCenterY * mResizeFactorY));
+		}
+		applyScroll(0, 0);
+		mBubbleMap.clear();
+		if (ss.mBubbleIds != null) {
+			for (int i = 0; i < ss.mBubbleIds.length; i++) {
+				addBubble(ss.mBubbleTexts[i], ss.mBubbleIds[i]);
+			}
+		}
+		invalidate();
+		refineZoom();
+	}
+
+	/**
+	 * watch for screen size changes and reset the background image
+	 */
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+
+		// save device height width, we use it a lot of places
+		mViewHeight = h;
+		mViewWidth = w;
+		// label text is squeezed to the view width
+		mLabels.invalidateMetrics();
+
+		// fix up the image
+		setInitialImageBounds();
+	}
+
+	private int getPreferredSize() {
+		return 300;
+	}
+
+	/**
+	 * the onDraw routine when we are using a background image
+	 *
+	 * @param canvas
+	 */
+	protected void drawMap(Canvas canvas)
+	{
+		if (mImage != null)
+		{
+			if (!mImage.isRecycled())
+			{
+				// only blit the part of the image that is inside both the
+				// view and the region being redrawn.  mDrawDst is in view
+				// coordinates, mDrawSrc in bitmap pixels
+				int expandWidth = mExpandWidth > 0 ? mExpandWidth : mImage.getWidth();
+				int expandHeight = mExpandHeight > 0 ? mExpandHeight : mImage.getHeight();
+				mDrawDst.set(0, 0, mViewWidth, mViewHeight);
+				if (!canvas.getClipBounds(mDrawClip) || !mDrawDst.intersect(mDrawClip))
+				{
+					return;
+				}
+				if (!mDrawDst.intersect(mScrollLeft, mScrollTop,
+					mScrollLeft + expandWidth, mScrollTop + expandHeight))
+				{
+					return;
+				}
+				float sx = (float) mImage.getWidth() / expandWidth;
+				float sy = (float) mImage.getHeight() / expandHeight;
+				mDrawSrc.set((int) ((mDrawDst.left - mScrollLeft) * sx),
+					(int) ((mDrawDst.top - mScrollTop) * sy),
+					(int) Math.ceil((mDrawDst.right - mScrollLeft) * sx),
+					(int) Math.ceil((mDrawDst.bottom - mScrollTop) * sy));
+				// filter while a zoom preview stretches the bitmap
+				boolean stretched = (sx != 1.0f) || (sy != 1.0f);
+				canvas.drawBitmap(mImage, mDrawSrc, mDrawDst, stretched ? mPreviewPaint : null);
+			}
+		}
+		else if (mVectorMode)
+		{
+			drawVectorMap(canvas);
+		}
+	}
+
+	/**
+	 * fill and outline every visible area in the base colours of
+	 * setVectorMap.  The paths are in image coordinates, simplified to the
+	 * current zoom, zoom and scroll are applied on the canvas
+	 * @param canvas
+	 */
+	protected void drawVectorMap(Canvas canvas)
+	{
+		if ((mVectorFillColor == 0 && mVectorStrokeColor == 0) || !beginImageDraw(canvas))
+		{
+			return;
+		}
+		mHighlightFillPaint.setColor(mVectorFillColor);
+		mHighlightStrokePaint.setColor(mVectorStrokeColor);
+		countAreasDrawn(mVectorPaths.draw(canvas, mViewRect, getLodLevel(),
+			mVectorFillColor != 0 ? mHighlightFillPaint : null,
+			mVectorStrokeColor != 0 ? mHighlightStrokePaint : null));
+		endImageDraw(canvas);
+	}
+
+	/*
+	 * Set canvas up to draw in image coordinates at the current zoom and
+	 * scroll, mViewRect to the visible part of the image, and scale the
+	 * highlight stroke width to stay the same on screen.  endImageDraw
+	 * undoes it.
+	 * @return false if there is nothing to draw at this size
+	 */
+	boolean beginImageDraw(Canvas canvas)
+	{
+		if (mResizeFactorX <= 0 || mResizeFactorY <= 0)
+		{
+			return false;
+		}
+		mViewRect.set(-mScrollLeft / mResizeFactorX, -mScrollTop / mResizeFactorY,
+			(mViewWidth - mScrollLeft) / mResizeFactorX, (mViewHeight - mScrollTop) / mResizeFactorY);
+		mSavedStrokeWidth = mHighlightStrokePaint.getStrokeWidth();
+		mHighlightStrokePaint.setStrokeWidth(mSavedStrokeWidth * 2 / (mResizeFactorX + mResizeFactorY));
+		canvas.save();
+		canvas.translate(mScrollLeft, mScrollTop);
+		canvas.scale(mResizeFactorX, mResizeFactorY);
+		return true;
+	}
+
+	void endImageDraw(Canvas canvas)
+	{
+		canvas.restore();
+		mHighlightStrokePaint.setStrokeWidth(mSavedStrokeWidth);
+	}
+
+	void countAreasDrawn(int drawn)
+	{
+		if (mFrameStats != null)
+		{
+			mFrameStats.mAreasDrawn += drawn;
+		}
+	}
+
+	protected void drawBubbles(Canvas canvas)
+	{
+		mLabels.draw(canvas);
+		for (int i = 0; i < mBubbleMap.size(); i++)
+		{
+			int key = mBubbleMap.keyAt(i);
+			Bubble b = mBubbleMap.get(key);
+			if (b != null)
+			{
+				b.onDraw(canvas);
+			}
+		}
+	}
+
+	/**
+	 * draw the visible layers, lowest priority first so that the layer a
+	 * tap goes to is on top.  Called twice, around drawHighlights, as the
+	 * styled areas of the view's own map have priority 0
+	 * @param canvas
+	 * @param above - draw the layers of priority above 0, else the others
+	 */
+	protected void drawLayers(Canvas canvas, boolean above)
+	{
+		MapLayer[] layers = mVisibleLayers;
+		if (layers.length == 0 || !beginImageDraw(canvas))
+		{
+			return;
+		}
+		int level = getLodLevel();
+		for (int l = layers.length - 1; l >= 0; l--)
+		{
+			if ((layers[l].mPriority > 0) == above)
+			{
+				countAreasDrawn(layers[l].draw(canvas, mViewRect, level,
+					mHighlightFillPaint, mHighlightStrokePaint));
+			}
+		}
+		endImageDraw(canvas);
+	}
+
+	/**
+	 * fill and outline the styled areas.  The cached paths are in image
+	 * coordinates, zoom and scroll are applied on the canvas
+	 * @param canvas
+	 */
+	protected void drawHighlights(Canvas canvas)
+	{
+		AreaStyleTable styles = mAreaStyles;
+		if (styles.mStyledCount == 0 || !beginImageDraw(canvas))
+		{
+			return;
+		}
+		if (mPathCache == null)
+		{
+			// a small share of the heap, paths live in native memory
+			mPathCache = new AreaPathCache((int) Math.min(Runtime.getRuntime().maxMemory() / 32, 4 * 1024 * 1024), mLod);
+		}
+		// outlines simplified to the current zoom
+		mPathCache.setLevel(getLodLevel());
+
+		// in the order the areas were added, see AreaStore
+		int[] order = mAreas.drawOrder();
+		int count = mAreas.size();
+		for (int k = 0; k < count; k++)
+		{
+			int i = order != null ? order[k] : k;
+			if (i >= styles.mFill.length)
+			{
+				continue;
+			}
+			int fill = styles.mFill[i];
+			int stroke = styles.mStroke[i];
+			if (fill == 0 && stroke == 0)
+			{
+				continue;
+			}
+			if (!AreaPaths.intersects(mAreas, i, mViewRect))
+			{
+				continue;
+			}
+			Path path = mPathCache.get(i);
+			if (path == null)
+			{
+				continue;
+			}
+			countAreasDrawn(1);
+			if (fill != 0)
+			{
+				mHighlightFillPaint.setColor(fill);
+				canvas.drawPath(path, mHighlightFillPaint);
+			}
+			if (stroke != 0)
+			{
+				mHighlightStrokePaint.setColor(stroke);
+				canvas.drawPath(path, mHighlightStrokePaint);
+			}
+		}
+		endImageDraw(canvas);
+	}
+
+	/*
+	 * Drop cached area paths when the system is short on memory
+	 */
+	@Override
+	protected void onAttachedToWindow()
+	{
+		super.onAttachedToWindow();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+		{
+			if (mMemoryCallbacks == null)
+			{
+				mMemoryCallbacks = new MemoryCallbacks();
+			}
+			getContext().registerComponentCallbacks((ComponentCallbacks2) mMemoryCallbacks);
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow()
+	{
+		super.onDetachedFromWindow();
+		if (mMemoryCallbacks != null)
+		{
+			getContext().unregisterComponentCallbacks((ComponentCallbacks2) mMemoryCallbacks);
+		}
+	}
+
+	void onTrimMemory(int level)
+	{
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+		{
+			BitmapPool.clear();
+			for (MapLayer layer : mVisibleLayers)
+			{
+				layer.trimMemory();
+			}
+		}
+		if (mPathCache != null)
+		{
+			if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+			{
+				mPathCache.evictAll();
+			}
+			else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			{
+				mPathCache.trimToSize(mPathCache.maxSize() / 2);
+			}
+		}
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+		{
+			mLod.clear();
+			mVectorPaths.clear();
+		}
+	}
+
+	/*
+	 * ComponentCallbacks2 is only available on API 14 and up
+	 */
+	class MemoryCallbacks implements ComponentCallbacks2 {
+		@Override
+		public void onTrimMemory(int level) {
+			ImageMap.this.onTrimMemory(level);
+		}
+
+		@Override
+		public void onLowMemory() {
+			ImageMap.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+		}
+	}
+
+	/**
+	 * draw the decorations and icons of the areas.  Override this to
+	 * decorate areas in a custom way, remembering to take the scaling and
+	 * translation into account
+	 * @param canvas
+	 */
+	protected void drawLocations(Canvas canvas)
+	{
+		if (mDecorationOverlay != null)
+		{
+			mDecorationOverlay.draw(canvas);
+			return;
+		}
+		int[] order = mAreas.drawOrder();
+		int count = mAreas.size();
+		for (int k = 0; k < count; k++)
+		{
+			drawAreaDecoration(canvas, order != null ? order[k] : k);
+		}
+		drawIcons(canvas);
+	}
+
+	/*
+	 * draw the atlas icons of the visible areas, every icon comes from the
+	 * same bitmap so the renderer can batch them
+	 */
+	protected void drawIcons(Canvas canvas)
+	{
+		if (mDecorationAtlas == null || mAreaIcons == null)
+		{
+			return;
+		}
+		int[] order = mAreas.drawOrder();
+		int count = mAreas.size();
+		for (int k = 0; k < count; k++)
+		{
+			int i = order != null ? order[k] : k;
+			if (i < mAreaIcons.length && mAreaIcons[i] >= 0)
+			{
+				if (getIconBounds(i, mIconDst, mScrollLeft, mScrollTop)
+					&& mIconDst.right > 0 && mIconDst.left < mViewWidth
+					&& mIconDst.bottom > 0 && mIconDst.top < mViewHeight)
+				{
+					canvas.drawBitmap(mDecorationAtlas.mBitmap, mDecorationAtlas.getIcon(mAreaIcons[i]), mIconDst, null);
+					if (mFrameStats != null)
+					{
+						mFrameStats.mAreasDrawn++;
+					}
+				}
 			}
 		}
-		canvas.restore();
 	}
 
-	protected void drawBubbles(Canvas canvas)
+	/**
+	 * Paint the view
+	 *   image first, location decorations next, bubbles on top
+	 */
+	@Override
+	protected void onDraw(Canvas canvas)
+	{
+		Tracing.begin("ImageMap#onDraw");
+		try
+		{
+			final FrameStats stats = mFrameStats;
+			long start = stats != null ? System.nanoTime() : 0;
+			long t = start;
+
+			Tracing.begin("ImageMap#drawMap");
+			try
+			{
+				drawMap(canvas);
+			}
+			finally
+			{
+				Tracing.end();
+			}
+			t = recordPhase(stats, FrameStats.PHASE_MAP, t);
+
+			Tracing.begin("ImageMap#drawHighlights");
+			try
+			{
+				drawLayers(canvas, false);
+				drawHighlights(canvas);
+				drawLayers(canvas, true);
+			}
+			finally
+			{
+				Tracing.end();
+			}
+			t = recordPhase(stats, FrameStats.PHASE_HIGHLIGHTS, t);
+
+			Tracing.begin("ImageMap#drawLocations");
+			try
+			{
+				drawLocations(canvas);
+			}
+			finally
+			{
+				Tracing.end();
+			}
+			t = recordPhase(stats, FrameStats.PHASE_LOCATIONS, t);
+
+			Tracing.begin("ImageMap#drawBubbles");
+			try
+			{
+				drawBubbles(canvas);
+			}
+			finally
+			{
+				Tracing.end();
+			}
+			t = recordPhase(stats, FrameStats.PHASE_BUBBLES, t);
+
+			if (stats != null)
+			{
+				stats.endFrame(t - start);
+			}
+			if (mInputLatency != null)
+			{
+				recordFrameLatency();
+			}
+		}
+		finally
+		{
+			Tracing.end();
+		}
+	}
+
+	/*
+	 * add the time since t to a phase of the frame
+	 * @return the time now, start of the next phase
+	 */
+	private static long recordPhase(FrameStats stats, int phase, long t)
+	{
+		if (stats == null)
+		{
+			return t;
+		}
+		long now = System.nanoTime();
+		stats.record(phase, now - t);
+		return now;
+	}
+
+	/*
+	 * this frame shows the pans and zooms applied since the last one
+	 */
+	void recordFrameLatency()
+	{
+		long now = SystemClock.uptimeMillis();
+		if (mAppliedPanTime != 0)
+		{
+			mInputLatency.record(InputLatencyStats.GESTURE_PAN, mAppliedPanTime, now);
+			mAppliedPanTime = 0;
+		}
+		if (mAppliedZoomTime != 0)
+		{
+			mInputLatency.record(InputLatencyStats.GESTURE_ZOOM, mAppliedZoomTime, now);
+			mAppliedZoomTime = 0;
+		}
+	}
+
+	/**
+	 * Turn input-to-frame latency measurement on or off (off by default)
+	 * @param enabled
+	 */
+	public void setInputLatencyStatsEnabled(boolean enabled)
+	{
+		if (enabled && mInputLatency == null)
+		{
+			mInputLatency = new InputLatencyStats();
+		}
+		else if (!enabled)
+		{
+			mInputLatency = null;
+		}
+		mPendingPanTime = 0;
+		mPendingZoomTime = 0;
+		mAppliedPanTime = 0;
+		mAppliedZoomTime = 0;
+	}
+
+	/**
+	 * @return latency per gesture type, null unless enabled
+	 */
+	public InputLatencyStats getInputLatencyStats()
 	{
-		for (int i = 0; i < mBubbleMap.size(); i++)
-		{
-			int key = mBubbleMap.keyAt(i);
-			Bubble b = mBubbleMap.get(key);
-			if (b != null)
-			{
-				b.onDraw(canvas);
-			}
-		}
+		return mInputLatency;
 	}
 
-	protected void drawLocations(Canvas canvas)
+	/**
+	 * Turn per-phase draw timing on or off.  When off (the default) the
+	 * only cost is a null check per phase.
+	 * @param enabled
+	 */
+	public void setFrameStatsEnabled(boolean enabled)
 	{
-		for (Area a : mAreaList)
+		if (enabled && mFrameStats == null)
 		{
-			a.onDraw(canvas);
+			mFrameStats = new FrameStats();
+		}
+		else if (!enabled)
+		{
+			mFrameStats = null;
 		}
 	}
 
 	/**
-	 * Paint the view
-	 *   image first, location decorations next, bubbles on top
+	 * @return the draw timing, null unless enabled
 	 */
-	@Override
-	protected void onDraw(Canvas canvas)
+	public FrameStats getFrameStats()
 	{
-		drawMap(canvas);
-		drawLocations(canvas);
-		drawBubbles(canvas);
+		return mFrameStats;
 	}
 
 	/*
@@ -799,6 +3054,9 @@ public class ImageMap extends ImageView
 	{
 		int id;
 
+		ensureInteraction();
+		ensureAreas();
+
 		if (mVelocityTracker == null)
 		{
 			mVelocityTracker = VelocityTracker.obtain();
@@ -806,6 +3064,7 @@ public class ImageMap extends ImageView
 		mVelocityTracker.addMovement(ev);
 
 		final int action = ev.getAction();
+		mEventTime = ev.getEventTime();
 
 		int pointerCount = ev.getPointerCount();
 		int index = 0;
@@ -834,6 +3093,14 @@ public class ImageMap extends ImageView
 				for ( TouchPoint t: mTouchPoints.values() ) {
 					onLostTouch(t.getTrackingPointer());
 				}
+				// a new touch stops a running fling along with
+				// whatever it was prefetching
+				if (!mScroller.isFinished()) {
+					mScroller.forceFinished(true);
+					if (mPrefetcher != null) {
+						mPrefetcher.cancel();
+					}
+				}
 				// fall through planned
 			case MotionEvent.ACTION_POINTER_DOWN:
 				id = ev.getPointerId(index);
@@ -841,11 +3108,23 @@ public class ImageMap extends ImageView
 				break;
 
 			case MotionEvent.ACTION_MOVE:
-				for (int p=0;p<pointerCount;p++) {
-					id = ev.getPointerId(p);
-					TouchPoint t = mTouchPoints.get(id);
-					if (t!=null) {
-						onTouchMove(t,ev.getX(p),ev.getY(p));
+				// replay the batched historical samples first so that
+				// slop detection and pinch distance see every position
+				// the pointers went through, not just the latest one
+				final int historySize = ev.getHistorySize();
+				for (int h=0;h<=historySize;h++) {
+					for (int p=0;p<pointerCount;p++) {
+						id = ev.getPointerId(p);
+						TouchPoint t = mTouchPoints.get(id);
+						if (t!=null) {
+							if (h<historySize) {
+								mEventTime = ev.getHistoricalEventTime(h);
+								onTouchMove(t,ev.getHistoricalX(p,h),ev.getHistoricalY(p,h));
+							} else {
+								mEventTime = ev.getEventTime();
+								onTouchMove(t,ev.getX(p),ev.getY(p));
+							}
+						}
 					}
 					// after all moves, check to see if we need
 					// to process a zoom
@@ -865,6 +3144,8 @@ public class ImageMap extends ImageView
 				for ( TouchPoint t: mTouchPoints.values() ) {
 					onLostTouch(t.getTrackingPointer());
 				}
+				// a cancelled pinch still needs its final rescale
+				onZoomFinished();
 				// let go of the velocity tracker per API Docs
 				if (mVelocityTracker != null) {
 					mVelocityTracker.recycle();
@@ -914,11 +3195,11 @@ public class ImageMap extends ImageView
 		if (t == mMainTouch) {
 			if (mPinchTouch == null) {
 				// only on point down, this is a move
-				final int deltaX = (int) (t.getX() - x);
-				final int xDiff = (int) Math.abs(t.getX() - x);
+				final float deltaX = t.getX() - x;
+				final float xDiff = Math.abs(deltaX);
 
-				final int deltaY = (int) (t.getY() - y);
-				final int yDiff = (int) Math.abs(t.getY() - y);
+				final float deltaY = t.getY() - y;
+				final float yDiff = Math.abs(deltaY);
 
 				if (!mIsBeingDragged) {
 					if ((xDiff > mTouchSlop) || (yDiff > mTouchSlop)) {
@@ -927,12 +3208,15 @@ public class ImageMap extends ImageView
 						mIsBeingDragged = true;
 					}
 				} else {
-					// being dragged, move the image
-					if (xDiff > 0) {
-						moveX(-deltaX);
-					}
-					if (yDiff > 0) {
-						moveY(-deltaY);
+					// being dragged, remember the move and let the
+					// next frame apply it
+					if ((xDiff > 0) || (yDiff > 0)) {
+						mPendingPanX -= deltaX;
+						mPendingPanY -= deltaY;
+						if (mInputLatency != null && mPendingPanTime == 0) {
+							mPendingPanTime = mEventTime;
+						}
+						scheduleInputFrame();
 					}
 					t.setPosition(x, y);
 				}
@@ -957,6 +3241,7 @@ public class ImageMap extends ImageView
 		synchronized (mTouchPoints) {
 			TouchPoint t = mTouchPoints.get(id);
 			if (t != null) {
+				boolean wasZooming = (mPinchTouch != null) && ((t == mMainTouch) || (t == mPinchTouch));
 				if (t == mMainTouch) {
 					if (mPinchTouch==null) {
 						// This is either a fling or tap
@@ -973,6 +3258,9 @@ public class ImageMap extends ImageView
 							int yfling = Math.abs(yVelocity) > mMinimumVelocity ? yVelocity
 								: 0;
 
+							// the fling starts from where the finger is,
+							// not where the last frame left the image
+							applyPendingInput();
 							if ((xfling != 0) || (yfling != 0)) {
 								fling(-xfling, -yfling);
 							}
@@ -986,7 +3274,12 @@ public class ImageMap extends ImageView
 							}
 						} else {
 							// no movement - this was a tap
-							onScreenTapped((int)mMainTouch.getX(), (int)mMainTouch.getY());
+							Tracing.begin("ImageMap#onScreenTapped");
+							try {
+								onScreenTapped((int)mMainTouch.getX(), (int)mMainTouch.getY());
+							} finally {
+								Tracing.end();
+							}
 						}
 					}
 					mMainTouch=null;
@@ -1002,6 +3295,9 @@ public class ImageMap extends ImageView
 				// tracking.  This is necessary for proper action
 				// on devices that support > 2 touches
 				regroupTouches();
+				if (wasZooming && (mPinchTouch == null)) {
+					onZoomFinished();
+				}
 			} else {
 				// lost this ID somehow
 				// This happens sometimes due to the way some
@@ -1079,6 +3375,25 @@ public class ImageMap extends ImageView
 		// This is cleaner than duplicating code
 		// see processZoom
 		mZoomEstablished=false;
+		cancelRefine();
+		// free memory may have changed since the last zoom
+		applyMemoryBudget();
+	}
+
+	/*
+	 * the second pointer went away, apply what is left of the pinch
+	 * and start the high quality rescale
+	 */
+	void onZoomFinished() {
+		applyPendingInput();
+		refineZoom();
+	}
+
+	/*
+	 * two pointers are down, the zoom changes with every move
+	 */
+	boolean isPinching() {
+		return mPinchTouch != null;
 	}
 
 	/*
@@ -1105,8 +3420,11 @@ public class ImageMap extends ImageView
 				int delta=distanceChange-mLastDistanceChange;
 				if (Math.abs(delta)>mTouchSlop) {
 					mLastDistanceChange=distanceChange;
-					resizeBitmap(delta);
-					invalidate();
+					mPendingZoom+=delta;
+					if (mInputLatency != null && mPendingZoomTime == 0) {
+						mPendingZoomTime = mEventTime;
+					}
+					scheduleInputFrame();
 				}
 			} else {
 				// first run through after touches established
@@ -1119,6 +3437,90 @@ public class ImageMap extends ImageView
 		}
 	}
 
+	/*
+	 * Ask for a callback on the next frame to apply the pending
+	 * pan and zoom.  Only one request is outstanding at any time.
+	 */
+	void scheduleInputFrame() {
+		if (mFrameScheduled) {
+			return;
+		}
+		mFrameScheduled=true;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			if (mVsyncCallback == null) {
+				mVsyncCallback = new VsyncCallback();
+			}
+			Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback)mVsyncCallback);
+		} else {
+			if (mFrameRunnable == null) {
+				mFrameRunnable = new Runnable() {
+					@Override
+					public void run() {
+						applyPendingInput();
+					}
+				};
+			}
+			// no vsync signal before JB, approximate one frame
+			postDelayed(mFrameRunnable, FRAME_DELAY_MS);
+		}
+	}
+
+	/*
+	 * Apply everything accumulated since the last frame as a single
+	 * transform update followed by a single invalidate
+	 */
+	void applyPendingInput() {
+		mFrameScheduled=false;
+		boolean changed=false;
+		// only input that moved the map waits for a frame to show it, a
+		// clamped zoom or pan would time some unrelated later frame
+		if (mPendingZoom != 0) {
+			if (resizeBitmap(mPendingZoom)) {
+				changed=true;
+				if (mAppliedZoomTime == 0) {
+					mAppliedZoomTime = mPendingZoomTime;
+				}
+			}
+			mPendingZoom=0;
+			mPendingZoomTime = 0;
+		}
+		// keep the sub pixel remainder for the next frame
+		int dx=(int)mPendingPanX;
+		int dy=(int)mPendingPanY;
+		if ((dx != 0) || (dy != 0)) {
+			mPendingPanX-=dx;
+			mPendingPanY-=dy;
+			if (applyScroll(dx, dy)) {
+				changed=true;
+				if (mAppliedPanTime == 0) {
+					mAppliedPanTime = mPendingPanTime;
+				}
+			}
+			mPendingPanTime = 0;
+		}
+		if (changed || mPendingRedraw) {
+			invalidate();
+		} else if (!mPendingDirty.isEmpty()) {
+			invalidate(mPendingDirty);
+		}
+		mPendingDirty.setEmpty();
+		mPendingRedraw=false;
+		AreaSnapshot snapshot = mAreaSnapshot;
+		if (mSnapshotsEnabled && (snapshot == null || snapshot.getVersion() != mAreaVersion)) {
+			publishAreaSnapshot();
+		}
+	}
+
+	/*
+	 * Choreographer callback, only created on API 16 and up
+	 */
+	class VsyncCallback implements Choreographer.FrameCallback {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			applyPendingInput();
+		}
+	}
+
 	/*
 	 * Screen tapped x, y is screen coord from upper left and does not account
 	 * for scroll
@@ -1167,6 +3569,7 @@ public class ImageMap extends ImageView
 			{
 				if (b.isInArea((float)x-mScrollLeft,(float)y-mScrollTop))
 				{
+					recordTapLatency();
 					b.onTapped();
 					bubble=true;
 					missed=false;
@@ -1178,41 +3581,82 @@ public class ImageMap extends ImageView
 
 		if (!bubble)
 		{
-			// then check for area taps
-			for (Area a : mAreaList)
+			// labels are bubbles too
+			int labelId = mLabels.hitTest((float)x-mScrollLeft,(float)y-mScrollTop);
+			if (labelId != 0)
 			{
-				if (a.isInArea((float)testx,(float)testy))
-				{
-					if (mCallbackList != null) {
-						for (OnImageMapClickedHandler h : mCallbackList)
+				recordTapLatency();
+				if (mCallbackList != null) {
+					for (OnImageMapClickedHandler h : mCallbackList)
+					{
+						h.onBubbleClicked(labelId);
+					}
+				}
+				bubble=true;
+				missed=false;
+			}
+		}
+
+		if (!bubble)
+		{
+			// then check for area taps, only fire clicked for one area
+			int id = hitTestAreas((float)testx, (float)testy);
+			if (id != 0)
+			{
+				recordTapLatency();
+				MapLayer layer = mHitLayer;
+				mHitLayer = null;
+				if (mCallbackList != null) {
+					for (OnImageMapClickedHandler h : mCallbackList)
+					{
+						if (layer != null && h instanceof OnLayerClickedHandler)
+						{
+							((OnLayerClickedHandler) h).onLayerAreaClicked(layer, id, this);
+						}
+						else
 						{
-							h.onImageMapClicked(a.getId(), this);
+							h.onImageMapClicked(id, this);
 						}
 					}
-					missed=false;
-					// only fire clicked for one area
-					break;
 				}
+				missed=false;
 			}
 		}
 
 		if (missed)
 		{
 			// managed to miss everything, clear bubbles
+			invalidateBubbles();
 			mBubbleMap.clear();
-			invalidate();
+		}
+	}
+
+	/*
+	 * a tap is about to be dispatched to the click handlers
+	 */
+	void recordTapLatency()
+	{
+		if (mInputLatency != null)
+		{
+			mInputLatency.record(InputLatencyStats.GESTURE_TAP, mEventTime, SystemClock.uptimeMillis());
 		}
 	}
 
 	// process a fling by kicking off the scroller
 	public void fling(int velocityX, int velocityY)
 	{
+		ensureInteraction();
 		int startX = mScrollLeft;
 		int startY = mScrollTop;
 
 		mScroller.fling(startX, startY, -velocityX, -velocityY, mRightBound, 0,
 			mBottomBound, 0);
 
+		// the end point is known now, start loading what it will show
+		if (mPrefetcher != null) {
+			mPrefetcher.start(startX, startY, mScroller.getFinalX(), mScroller.getFinalY());
+		}
+
 		invalidate();
 	}
 
@@ -1220,49 +3664,41 @@ public class ImageMap extends ImageView
 	 * move the view to this x, y
 	 */
 	public void moveTo(int x, int y) {
-		mScrollLeft = x;
-		if (mScrollLeft > 0) {
-			mScrollLeft = 0;
-		}
-		if (mScrollLeft < mRightBound) {
-			mScrollLeft = mRightBound;
-		}
-		mScrollTop=y;
-		if (mScrollTop > 0) {
-			mScrollTop = 0;
-		}
-		if (mScrollTop < mBottomBound) {
-			mScrollTop = mBottomBound;
+		moveBy(x-mScrollLeft, y-mScrollTop);
+	}
+
+	/*
+	 * move the view by this delta in both directions with a single invalidate
+	 */
+	public void moveBy(int deltaX, int deltaY) {
+		if (applyScroll(deltaX, deltaY)) {
+			invalidate();
 		}
-		invalidate();
+	}
+
+	/*
+	 * clamp and apply a scroll delta, returns true if the position changed
+	 */
+	boolean applyScroll(int deltaX, int deltaY) {
+		int oldLeft = mScrollLeft;
+		int oldTop = mScrollTop;
+		mScrollLeft = Math.max(mRightBound, Math.min(0, mScrollLeft + deltaX));
+		mScrollTop = Math.max(mBottomBound, Math.min(0, mScrollTop + deltaY));
+		return (oldLeft != mScrollLeft) || (oldTop != mScrollTop);
 	}
 
 	/*
 	 * move the view by this delta in X direction
 	 */
 	public void moveX(int deltaX) {
-		mScrollLeft = mScrollLeft + deltaX;
-		if (mScrollLeft > 0) {
-			mScrollLeft = 0;
-		}
-		if (mScrollLeft < mRightBound) {
-			mScrollLeft = mRightBound;
-		}
-		invalidate();
+		moveBy(deltaX, 0);
 	}
 
 	/*
 	 * move the view by this delta in Y direction
 	 */
 	public void moveY(int deltaY) {
-		mScrollTop = mScrollTop + deltaY;
-		if (mScrollTop > 0) {
-			mScrollTop = 0;
-		}
-		if (mScrollTop < mBottomBound) {
-			mScrollTop = mBottomBound;
-		}
-		invalidate();
+		moveBy(0, deltaY);
 	}
 
 	/*
@@ -1320,268 +3756,154 @@ public class ImageMap extends ImageView
          * Begin map area support
          */
 	/**
-	 *  Area is abstract Base for tappable map areas
-	 *   descendants provide hit test and focal point
+	 *  Area is a tappable map area.  The geometry and ids live in mAreas
+	 *  (see AreaStore), an Area is only a flyweight over its position
+	 *  there, created on demand by getAreaAt
 	 */
-	abstract class Area {
-		int _id;
-		String _name;
-		HashMap<String,String> _values;
-		Bitmap _decoration=null;
+	class Area {
+		// position in mAreas, used to index per-area tables
+		int _index;
 
-		public Area(int id, String name) {
-			_id = id;
-			if (name != null) {
-				_name = name;
-			}
+		Area(int index) {
+			_index = index;
 		}
 
 		public int getId() {
-			return _id;
+			return mAreas.mIds[_index];
 		}
 
 		public String getName() {
-			return _name;
+			return mAreas.mNames[_index];
 		}
 
 		// all xml values for the area are passed to the object
 		// the default impl just puts them into a hashmap for
 		// retrieval later
 		public void addValue(String key, String value) {
-			if (_values == null) {
-				_values = new HashMap<String,String>();
-			}
-			_values.put(key, value);
+			setAreaValue(_index, key, value);
 		}
 
 		public String getValue(String key) {
-			String value=null;
-			if (_values!=null) {
-				value=_values.get(key);
-			}
-			return value;
+			return mAreas.getValue(_index, key);
 		}
 
 		// a method for setting a simple decorator for the area
+		// only the decoration's own rect is redrawn
 		public void setBitmap(Bitmap b) {
-			_decoration = b;
-		}
-
-		// an onDraw is set up to provide an extensible way to
-		// decorate an area.  When drawing remember to take the
-		// scaling and translation into account
-		public void onDraw(Canvas canvas)
-		{
-			if (_decoration != null)
-			{
-				float x = (getOriginX() * mResizeFactorX) + mScrollLeft - 17;
-				float y = (getOriginY() * mResizeFactorY) + mScrollTop - 17;
-				canvas.drawBitmap(_decoration, x, y, null);
-			}
+			setAreaDecoration(_index, b);
 		}
 
-		abstract boolean isInArea(float x, float y);
-		abstract float getOriginX();
-		abstract float getOriginY();
-	}
-
-	/**
-	 * Rectangle Area
-	 */
-	class RectArea extends Area {
-		float _left;
-		float _top;
-		float _right;
-		float _bottom;
-
-
-		RectArea(int id, String name, float left, float top, float right, float bottom) {
-			super(id,name);
-			_left = left;
-			_top = top;
-			_right = right;
-			_bottom = bottom;
+		boolean isInArea(float x, float y) {
+			return mAreas.isInArea(_index, x, y);
 		}
 
-		public boolean isInArea(float x, float y) {
-			boolean ret = false;
-			if ((x > _left) && (x < _right)) {
-				if ((y > _top) && (y < _bottom)) {
-					ret = true;
-				}
-			}
-			return ret;
+		float getOriginX() {
+			return mAreas.getOriginX(_index);
 		}
 
-		public float getOriginX() {
-			return _left;
+		float getOriginY() {
+			return mAreas.getOriginY(_index);
 		}
 
-		public float getOriginY() {
-			return _top;
+		// bounding box in image coordinates
+		void getBounds(RectF out) {
+			mAreas.getBounds(_index, out);
 		}
 	}
 
-	/**
-	 * Polygon area
+	/*
+	 * set the decoration of the area at index, only the decoration's own
+	 * rect is redrawn
 	 */
-	class PolyArea extends Area {
-		ArrayList<Integer> xpoints = new ArrayList<Integer>();
-		ArrayList<Integer> ypoints = new ArrayList<Integer>();
-
-		// centroid point for this poly
-		float _x;
-		float _y;
-
-		// number of points (don't rely on array size)
-		int _points;
-
-		// bounding box
-		int top=-1;
-		int bottom=-1;
-		int left=-1;
-		int right=-1;
-
-		public PolyArea(int id, String name, String coords) {
-			super(id,name);
-
-			// split the list of coordinates into points of the
-			// polygon and compute a bounding box
-			String[] v = coords.split(",");
-
-			int i=0;
-			while ((i+1)<v.length) {
-				int x = Integer.parseInt(v[i]);
-				int y = Integer.parseInt(v[i+1]);
-				xpoints.add(x);
-				ypoints.add(y);
-				top=(top==-1)?y:Math.min(top,y);
-				bottom=(bottom==-1)?y:Math.max(bottom,y);
-				left=(left==-1)?x:Math.min(left,x);
-				right=(right==-1)?x:Math.max(right,x);
-				i+=2;
-			}
-			_points=xpoints.size();
-
-			// add point zero to the end to make
-			// computing area and centroid easier
-			xpoints.add(xpoints.get(0));
-			ypoints.add(ypoints.get(0));
-
-			computeCentroid();
-		}
-
-		/**
-		 * area() and computeCentroid() are adapted from the implementation
-		 * of polygon.java  published from a princeton case study
-		 * The study is here: http://introcs.cs.princeton.edu/java/35purple/
-		 * The polygon.java source is here: http://introcs.cs.princeton.edu/java/35purple/Polygon.java.html
-		 */
-
-		// return area of polygon
-		public double area() {
-			double sum = 0.0;
-			for (int i = 0; i < _points; i++) {
-				sum = sum + (xpoints.get(i) * ypoints.get(i+1)) - (ypoints.get(i) * xpoints.get(i+1));
-			}
-			sum = 0.5 * sum;
-			return Math.abs(sum);
+	void setAreaDecoration(int index, Bitmap b) {
+		invalidateDecoration(index);
+		mAreas.setDecoration(index, b);
+		invalidateDecoration(index);
+		if (mDecorationOverlay != null) {
+			mDecorationOverlay.invalidateArea(index);
 		}
+	}
 
-		// compute the centroid of the polygon
-		public void computeCentroid() {
-			double cx = 0.0, cy = 0.0;
-			for (int i = 0; i < _points; i++) {
-				cx = cx + (xpoints.get(i) + xpoints.get(i+1)) * (ypoints.get(i) * xpoints.get(i+1) - xpoints.get(i) * ypoints.get(i+1));
-				cy = cy + (ypoints.get(i) + ypoints.get(i+1)) * (ypoints.get(i) * xpoints.get(i+1) - xpoints.get(i) * ypoints.get(i+1));
-			}
-			cx /= (6 * area());
-			cy /= (6 * area());
-			_x=Math.abs((int)cx);
-			_y=Math.abs((int)cy);
+	void invalidateDecoration(int index) {
+		Bitmap d = mAreas.getDecoration(index);
+		if (d != null) {
+			int x = (int)(getDecorationX(index) + mScrollLeft);
+			int y = (int)(getDecorationY(index) + mScrollTop);
+			invalidate(x, y, x + d.getWidth() + 1, y + d.getHeight() + 1);
 		}
+	}
 
+	// top left of the decoration in scaled image coordinates
+	float getDecorationX(int index) {
+		return (mAreas.getOriginX(index) * mResizeFactorX) - 17;
+	}
 
-		@Override
-		public float getOriginX() {
-			return _x;
-		}
+	float getDecorationY(int index) {
+		return (mAreas.getOriginY(index) * mResizeFactorY) - 17;
+	}
 
-		@Override
-		public float getOriginY() {
-			return _y;
+	// draw the decoration with the scaled image placed at offsetX, offsetY
+	void drawDecoration(Canvas canvas, int index, float offsetX, float offsetY) {
+		Bitmap d = mAreas.getDecoration(index);
+		if (d != null) {
+			canvas.drawBitmap(d, getDecorationX(index) + offsetX, getDecorationY(index) + offsetY, null);
 		}
+	}
 
-		/**
-		 * This is a java port of the
-		 * W. Randolph Franklin algorithm explained here
-		 * http://www.ecse.rpi.edu/Homepages/wrf/Research/Short_Notes/pnpoly.html
-		 */
-		@Override
-		public boolean isInArea(float testx, float testy)
-		{
-			int i, j;
-			boolean c = false;
-			for (i = 0, j = _points-1; i < _points; j = i++) {
-				if ( ((ypoints.get(i)>testy) != (ypoints.get(j)>testy)) &&
-					(testx < (xpoints.get(j)-xpoints.get(i)) * (testy-ypoints.get(i)) / (ypoints.get(j)-ypoints.get(i)) + xpoints.get(i)) )
-					c = !c;
-			}
-			return c;
+	// draw the atlas icon with the scaled image placed at offsetX, offsetY
+	void drawIcon(Canvas canvas, int index, float offsetX, float offsetY) {
+		if (getIconBounds(index, mIconDst, offsetX, offsetY)) {
+			canvas.drawBitmap(mDecorationAtlas.mBitmap, mDecorationAtlas.getIcon(getIcon(index)), mIconDst, null);
 		}
-
-		// For debugging maps, it is occasionally helpful to see the
-		// bounding box for the polygons
-                /*
-                @Override
-                public void onDraw(Canvas canvas) {
-                    // draw the bounding box
-                        canvas.drawRect(left * mResizeFactorX + mScrollLeft,
-                                                top * mResizeFactorY + mScrollTop,
-                                                right * mResizeFactorX + mScrollLeft,
-                                                bottom * mResizeFactorY + mScrollTop,
-                                                textOutlinePaint);
-                }
-                */
 	}
 
-	/**
-	 * Circle Area
-	 */
-	class CircleArea extends Area {
-		float _x;
-		float _y;
-		float _radius;
-
-		CircleArea(int id, String name, float x, float y, float radius) {
-			super(id,name);
-			_x = x;
-			_y = y;
-			_radius = radius;
-
+	// atlas icon index, -1 if the area has none
+	int getIcon(int index) {
+		if (mDecorationAtlas != null && mAreaIcons != null && index < mAreaIcons.length) {
+			return mAreaIcons[index];
 		}
+		return -1;
+	}
 
-		public boolean isInArea(float x, float y) {
-			boolean ret = false;
-
-			float dx = _x-x;
-			float dy = _y-y;
-
-			// if tap is less than radius distance from the center
-			float d = (float)Math.sqrt((dx*dx)+(dy*dy));
-			if (d<_radius) {
-				ret = true;
-			}
-
-			return ret;
+	// icons are centered on the area origin
+	boolean getIconBounds(int index, RectF out, float offsetX, float offsetY) {
+		int icon = getIcon(index);
+		if (icon < 0 || icon >= mDecorationAtlas.getIconCount()) {
+			return false;
 		}
+		Rect src = mDecorationAtlas.getIcon(icon);
+		float x = (mAreas.getOriginX(index) * mResizeFactorX) + offsetX - (src.width() / 2f);
+		float y = (mAreas.getOriginY(index) * mResizeFactorY) + offsetY - (src.height() / 2f);
+		out.set(x, y, x + src.width(), y + src.height());
+		return true;
+	}
 
-		public float getOriginX() {
-			return _x;
+	void invalidateIcon(int index) {
+		if (getIconBounds(index, mIconDst, mScrollLeft, mScrollTop)) {
+			invalidate((int) mIconDst.left, (int) mIconDst.top,
+				(int) Math.ceil(mIconDst.right), (int) Math.ceil(mIconDst.bottom));
 		}
+	}
 
-		public float getOriginY() {
-			return _y;
+	/*
+	 * draw the decoration of an area, or ask for it if the area is on
+	 * screen.  When drawing remember to take the scaling and translation
+	 * into account
+	 */
+	void drawAreaDecoration(Canvas canvas, int index) {
+		if (mAreas.getDecoration(index) != null) {
+			drawDecoration(canvas, index, mScrollLeft, mScrollTop);
+			if (mFrameStats != null) {
+				mFrameStats.mAreasDrawn++;
+			}
+		} else if (mDecorationProvider != null && !mAreas.isDecorationRequested(index)
+			&& !mAreas.isRemoved(index)) {
+			// ask for decorations of on screen areas only
+			float x = getDecorationX(index) + mScrollLeft;
+			float y = getDecorationY(index) + mScrollTop;
+			if ((x > 0) && (x < mViewWidth) && (y > 0) && (y < mViewHeight)) {
+				mPrefetcher.request(index);
+			}
 		}
 	}
 
@@ -1599,6 +3921,7 @@ public class ImageMap extends ImageView
 		int _baseline;
 		float _top;
 		float _left;
+		BubbleSpriteCache.Sprite _sprite;
 
 		Bubble(String text, float x, float y)
 		{
@@ -1607,7 +3930,7 @@ public class ImageMap extends ImageView
 
 		Bubble(String text, int areaId)
 		{
-			_a = mIdToArea.get(areaId);
+			_a = getArea(areaId);
 			if (_a != null) {
 				float x = _a.getOriginX();
 				float y = _a.getOriginY();
@@ -1620,22 +3943,13 @@ public class ImageMap extends ImageView
 			_text = text;
 			_x = x*mResizeFactorX;
 			_y = y*mResizeFactorY;
-			Rect bounds = new Rect();
-			textPaint.setTextScaleX(1.0f);
-			textPaint.getTextBounds(text, 0, _text.length(), bounds);
-			_h = bounds.bottom-bounds.top+20;
-			_w = bounds.right-bounds.left+20;
-
-			if (_w>mViewWidth) {
-				// too long for the display width...need to scale down
-				float newscale=((float)mViewWidth/(float)_w);
-				textPaint.setTextScaleX(newscale);
-				textPaint.getTextBounds(text, 0, _text.length(), bounds);
-				_h = bounds.bottom-bounds.top+20;
-				_w = bounds.right-bounds.left+20;
-			}
-
-			_baseline = _h-bounds.bottom;
+			// measurements are shared with every other bubble
+			// showing the same text
+			_sprite = BubbleSpriteCache.getInstance().measure(text, textPaint,
+				bubblePaint.getColor(), bubbleShadowPaint.getColor(), mViewWidth);
+			_h = _sprite.height;
+			_w = _sprite.width;
+			_baseline = _sprite.baseline;
 			_left = _x - (_w/2);
 			_top = _y - _h - 30;
 
@@ -1651,6 +3965,23 @@ public class ImageMap extends ImageView
 			}
 		}
 
+		/*
+		 * add the view area covered by the bubble, its shadow and its
+		 * pointer to the dirty rect
+		 */
+		void addDirtyBounds(Rect dirty) {
+			if (_a != null) {
+				float ox = _x + mScrollLeft;
+				float oy = _y + mScrollTop;
+				float l = Math.min(_left + mScrollLeft, ox - 5);
+				float t = Math.min(_top + mScrollTop, oy - 36);
+				float r = Math.max(_left + mScrollLeft + _w + 4, ox + 10);
+				float b = Math.max(_top + mScrollTop + _h + 4, oy + 36);
+				dirty.union((int) Math.floor(l), (int) Math.floor(t),
+					(int) Math.ceil(r), (int) Math.ceil(b));
+			}
+		}
+
 		public boolean isInArea(float x, float y) {
 			boolean ret = false;
 
@@ -1666,47 +3997,7 @@ public class ImageMap extends ImageView
 		void onDraw(Canvas canvas)
 		{
 			if (_a != null) {
-				// Draw a shadow of the bubble
-				float l = _left + mScrollLeft + 4;
-				float t = _top + mScrollTop + 4;
-				canvas.drawRoundRect(new RectF(l,t,l+_w,t+_h), 20.0f, 20.0f, bubbleShadowPaint);
-				Path path = new Path();
-				float ox=_x+ mScrollLeft+ 1;
-				float oy=_y+mScrollTop+ 1;
-				int yoffset=-35;
-				if (_top > _y) {
-					yoffset=35;
-				}
-				// draw shadow of pointer to origin
-				path.moveTo(ox,oy);
-				path.lineTo(ox-5,oy+yoffset);
-				path.lineTo(ox+5+4,oy+yoffset);
-				path.lineTo(ox, oy);
-				path.close();
-				canvas.drawPath(path, bubbleShadowPaint);
-
-				// draw the bubble
-				l = _left + mScrollLeft;
-				t = _top + mScrollTop;
-				canvas.drawRoundRect(new RectF(l,t,l+_w,t+_h), 20.0f, 20.0f, bubblePaint);
-				path = new Path();
-				ox=_x+ mScrollLeft;
-				oy=_y+mScrollTop;
-				yoffset=-35;
-				if (_top > _y)
-				{
-					yoffset=35;
-				}
-				// draw pointer to origin
-				path.moveTo(ox,oy);
-				path.lineTo(ox-5,oy+yoffset);
-				path.lineTo(ox+5,oy+yoffset);
-				path.lineTo(ox, oy);
-				path.close();
-				canvas.drawPath(path, bubblePaint);
-
-				// draw the message
-				canvas.drawText(_text,l+(_w/2),t+_baseline-10,textPaint);
+				drawBubble(canvas, _sprite, _left, _top, _x, _y);
 			}
 		}
 
@@ -1720,6 +4011,111 @@ public class ImageMap extends ImageView
 		}
 	}
 
+	/*
+	 * draw a bubble sprite whose top left is at left, top and whose
+	 * pointer points at x, y (all in scaled image coordinates)
+	 */
+	void drawBubble(Canvas canvas, BubbleSpriteCache.Sprite sprite, float left, float top, float x, float y)
+	{
+		Path path = mBubblePath;
+		path.rewind();
+		float ox=x+ mScrollLeft+ 1;
+		float oy=y+mScrollTop+ 1;
+		int yoffset=-35;
+		if (top > y) {
+			yoffset=35;
+		}
+		// draw shadow of pointer to origin
+		path.moveTo(ox,oy);
+		path.lineTo(ox-5,oy+yoffset);
+		path.lineTo(ox+5+4,oy+yoffset);
+		path.lineTo(ox, oy);
+		path.close();
+		canvas.drawPath(path, bubbleShadowPaint);
+
+		// draw the bubble, its shadow and the message
+		// from the pre-rendered sprite
+		if (mFrameStats != null) {
+			mFrameStats.mBubblesDrawn++;
+			if (sprite.bitmap == null) {
+				mFrameStats.mBitmapsCreated++;
+			}
+		}
+		Bitmap bits = BubbleSpriteCache.getInstance().render(sprite,
+			textPaint, bubblePaint, bubbleShadowPaint);
+		canvas.drawBitmap(bits, left + mScrollLeft, top + mScrollTop, null);
+
+		// draw pointer to origin
+		path.rewind();
+		ox=x+ mScrollLeft;
+		oy=y+mScrollTop;
+		path.moveTo(ox,oy);
+		path.lineTo(ox-5,oy+yoffset);
+		path.lineTo(ox+5,oy+yoffset);
+		path.lineTo(ox, oy);
+		path.close();
+		canvas.drawPath(path, bubblePaint);
+	}
+
+	/**
+	 * zoom, position and open bubbles across configuration changes
+	 */
+	static class SavedState extends BaseSavedState
+	{
+		// size relative to the minimum size
+		float mZoomX = 1f;
+		float mZoomY = 1f;
+		// image point at the centre of the view, in original image
+		// coordinates, -1 if unknown
+		float mCenterX = -1f;
+		float mCenterY = -1f;
+		int[] mBubbleIds;
+		String[] mBubbleTexts;
+
+		SavedState(Parcelable superState)
+		{
+			super(superState);
+		}
+
+		private SavedState(Parcel in)
+		{
+			super(in);
+			mZoomX = in.readFloat();
+			mZoomY = in.readFloat();
+			mCenterX = in.readFloat();
+			mCenterY = in.readFloat();
+			mBubbleIds = in.createIntArray();
+			mBubbleTexts = in.createStringArray();
+		}
+
+		@Override
+		public void writeToParcel(Parcel out, int flags)
+		{
+			super.writeToParcel(out, flags);
+			out.writeFloat(mZoomX);
+			out.writeFloat(mZoomY);
+			out.writeFloat(mCenterX);
+			out.writeFloat(mCenterY);
+			out.writeIntArray(mBubbleIds);
+			out.writeStringArray(mBubbleTexts);
+		}
+
+		public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>()
+		{
+			@Override
+			public SavedState createFromParcel(Parcel in)
+			{
+				return new SavedState(in);
+			}
+
+			@Override
+			public SavedState[] newArray(int size)
+			{
+				return new SavedState[size];
+			}
+		};
+	}
+
 	/**
 	 * Map tapped callback interface
 	 */
@@ -1737,6 +4133,36 @@ public class ImageMap extends ImageView
 		void onBubbleClicked(int id);
 	}
 
+	/**
+	 * A click handler that is told which layer a tapped area belongs to,
+	 * see addLayer.  Layer areas go to onLayerAreaClicked instead of
+	 * onImageMapClicked, so their ids cannot be mistaken for those of the
+	 * view's own areas.  A handler that only implements
+	 * OnImageMapClickedHandler gets them through onImageMapClicked.
+	 */
+	public interface OnLayerClickedHandler extends OnImageMapClickedHandler
+	{
+		/**
+		 * Area with 'id' of layer has been tapped
+		 * @param layer
+		 * @param id
+		 */
+		void onLayerAreaClicked(MapLayer layer, int id, ImageMap imageMap);
+	}
+
+	/**
+	 * Supplies decoration bitmaps for areas on demand
+	 */
+	public interface DecorationProvider
+	{
+		/**
+		 * Load the decoration for area 'id'.  Called on a background thread.
+		 * @param id
+		 * @return the decoration, or null if the area has none
+		 */
+		Bitmap loadDecoration(int id);
+	}
+
 	/*
 	* Misc getters
 	* TODO: setters for there?
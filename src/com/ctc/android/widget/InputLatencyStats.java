@@ -0,0 +1,62 @@
+package com.ctc.android.widget;
+
+/**
+ * Opt-in input latency instrumentation for ImageMap
+ * (see ImageMap.setInputLatencyStatsEnabled).
+ *
+ * For pans and zooms the latency is the time from MotionEvent.getEventTime()
+ * of the oldest touch sample folded into a frame to the end of the onDraw
+ * that shows it.  For taps it is the time from the up event to the dispatch
+ * of the click callbacks.  Times are in the SystemClock.uptimeMillis base
+ * used by MotionEvent, so resolution is one millisecond.
+ */
+public class InputLatencyStats
+{
+	public static final int GESTURE_TAP = 0;
+	public static final int GESTURE_PAN = 1;
+	public static final int GESTURE_ZOOM = 2;
+	public static final int GESTURE_COUNT = 3;
+
+	private final Histogram[] mGestures = new Histogram[GESTURE_COUNT];
+
+	InputLatencyStats()
+	{
+		for (int i = 0; i < GESTURE_COUNT; i++)
+		{
+			mGestures[i] = new Histogram();
+		}
+	}
+
+	public Histogram getHistogram(int gesture)
+	{
+		return mGestures[gesture];
+	}
+
+	public long getP50Micros(int gesture)
+	{
+		return mGestures[gesture].getPercentileMicros(50);
+	}
+
+	public long getP95Micros(int gesture)
+	{
+		return mGestures[gesture].getPercentileMicros(95);
+	}
+
+	public long getP99Micros(int gesture)
+	{
+		return mGestures[gesture].getPercentileMicros(99);
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < GESTURE_COUNT; i++)
+		{
+			mGestures[i].reset();
+		}
+	}
+
+	void record(int gesture, long eventTime, long now)
+	{
+		mGestures[gesture].record((now - eventTime) * 1000);
+	}
+}
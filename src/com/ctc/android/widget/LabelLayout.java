@@ -0,0 +1,398 @@
+package com.ctc.android.widget;
+
+import android.graphics.Canvas;
+
+/**
+ * Places many labels (info bubbles) at once without overlap.
+ *
+ * Each label is anchored at its area's origin and tried above, then below
+ * the origin, highest priority first.  Collisions are found with a uniform
+ * grid over the scaled image so each placement only tests the labels in the
+ * cells it covers; a label that collides in both positions is hidden.
+ *
+ * Text metrics and the priority order only change when labels are added or
+ * removed, a zoom change just re-runs the placement over the cached sizes.
+ */
+class LabelLayout
+{
+	// grid cell size in pixels of the scaled image
+	private static final int CELL_SIZE = 128;
+
+	private final ImageMap mMap;
+
+	// candidates, in the order they were added
+	private int mCount;
+	private int[] mIds = new int[16];
+	private String[] mTexts = new String[16];
+	private int[] mPriorities = new int[16];
+	private BubbleSpriteCache.Sprite[] mSprites = new BubbleSpriteCache.Sprite[16];
+
+	// candidate indices sorted by descending priority
+	private int[] mOrder = new int[0];
+	private boolean mCandidatesChanged = true;
+
+	// placement result, in scaled image coordinates
+	private boolean[] mPlaced = new boolean[16];
+	private float[] mAnchorX = new float[16];
+	private float[] mAnchorY = new float[16];
+	private float[] mLeft = new float[16];
+	private float[] mTop = new float[16];
+
+	// zoom and size the placement was computed for
+	private float mResizeX = -1;
+	private float mResizeY = -1;
+	private int mWidth = -1;
+	private int mHeight = -1;
+
+	// collision grid: per cell a linked list of placed candidates
+	private int mColumns;
+	private int mRows;
+	private int[] mCellHead = new int[0];
+	private int mEntries;
+	private int[] mEntryNext = new int[64];
+	private int[] mEntryLabel = new int[64];
+
+	LabelLayout(ImageMap map)
+	{
+		mMap = map;
+	}
+
+	int size()
+	{
+		return mCount;
+	}
+
+	void add(int areaId, String text, int priority)
+	{
+		int i = indexOf(areaId);
+		if (i < 0)
+		{
+			ensureCapacity(mCount + 1);
+			i = mCount++;
+		}
+		mIds[i] = areaId;
+		mTexts[i] = text;
+		mPriorities[i] = priority;
+		mSprites[i] = null;
+		mCandidatesChanged = true;
+	}
+
+	/**
+	 * @return true if the area had a label
+	 */
+	boolean remove(int areaId)
+	{
+		int i = indexOf(areaId);
+		if (i >= 0)
+		{
+			mCount--;
+			mIds[i] = mIds[mCount];
+			mTexts[i] = mTexts[mCount];
+			mPriorities[i] = mPriorities[mCount];
+			mSprites[i] = mSprites[mCount];
+			mTexts[mCount] = null;
+			mSprites[mCount] = null;
+			mCandidatesChanged = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * the area of a label moved, place the labels again on the next draw
+	 * @return true if the area has a label
+	 */
+	boolean onAreaMoved(int areaId)
+	{
+		if (indexOf(areaId) < 0)
+		{
+			return false;
+		}
+		mResizeX = -1;
+		return true;
+	}
+
+	void clear()
+	{
+		for (int i = 0; i < mCount; i++)
+		{
+			mTexts[i] = null;
+			mSprites[i] = null;
+		}
+		mCount = 0;
+		mCandidatesChanged = true;
+	}
+
+	/**
+	 * forget text measurements, e.g. after the view size or paints changed
+	 */
+	void invalidateMetrics()
+	{
+		for (int i = 0; i < mCount; i++)
+		{
+			mSprites[i] = null;
+		}
+		mCandidatesChanged = true;
+	}
+
+	void draw(Canvas canvas)
+	{
+		if (mCount == 0)
+		{
+			return;
+		}
+		layout();
+		int scrollLeft = mMap.mScrollLeft;
+		int scrollTop = mMap.mScrollTop;
+		// lowest priority first so the most important labels end up on top
+		for (int o = mOrder.length - 1; o >= 0; o--)
+		{
+			int i = mOrder[o];
+			if (!mPlaced[i])
+			{
+				continue;
+			}
+			BubbleSpriteCache.Sprite sprite = mSprites[i];
+			float l = mLeft[i] + scrollLeft;
+			float t = mTop[i] + scrollTop;
+			if ((l + sprite.width < 0) || (l > mMap.mViewWidth) || (t + sprite.height < 0) || (t > mMap.mViewHeight))
+			{
+				continue;
+			}
+			mMap.drawBubble(canvas, sprite, mLeft[i], mTop[i], mAnchorX[i], mAnchorY[i]);
+		}
+	}
+
+	/**
+	 * find the visible label at x, y (scaled image coordinates)
+	 * @return the area id of the label, 0 if none
+	 */
+	int hitTest(float x, float y)
+	{
+		if (mCount == 0)
+		{
+			return 0;
+		}
+		layout();
+		for (int o = 0; o < mOrder.length; o++)
+		{
+			int i = mOrder[o];
+			if (mPlaced[i] && (x > mLeft[i]) && (x < mLeft[i] + mSprites[i].width)
+				&& (y > mTop[i]) && (y < mTop[i] + mSprites[i].height))
+			{
+				return mIds[i];
+			}
+		}
+		return 0;
+	}
+
+	/*
+	 * bring the placement up to date with the current zoom
+	 */
+	private void layout()
+	{
+		boolean zoomChanged = (mResizeX != mMap.mResizeFactorX) || (mResizeY != mMap.mResizeFactorY)
+			|| (mWidth != mMap.mExpandWidth) || (mHeight != mMap.mExpandHeight);
+		if (!zoomChanged && !mCandidatesChanged)
+		{
+			return;
+		}
+		if (mCandidatesChanged)
+		{
+			measure();
+			sort();
+			mCandidatesChanged = false;
+		}
+		mResizeX = mMap.mResizeFactorX;
+		mResizeY = mMap.mResizeFactorY;
+		mWidth = mMap.mExpandWidth;
+		mHeight = mMap.mExpandHeight;
+		place();
+	}
+
+	private void measure()
+	{
+		BubbleSpriteCache cache = BubbleSpriteCache.getInstance();
+		for (int i = 0; i < mCount; i++)
+		{
+			if (mSprites[i] == null)
+			{
+				mSprites[i] = cache.measure(mTexts[i], mMap.textPaint, mMap.bubblePaint.getColor(),
+					mMap.bubbleShadowPaint.getColor(), mMap.mViewWidth);
+			}
+		}
+	}
+
+	private void sort()
+	{
+		if (mOrder.length != mCount)
+		{
+			mOrder = new int[mCount];
+		}
+		for (int i = 0; i < mCount; i++)
+		{
+			mOrder[i] = i;
+		}
+		// insertion sort, stable so equal priorities keep insertion order
+		for (int i = 1; i < mCount; i++)
+		{
+			int c = mOrder[i];
+			int j = i - 1;
+			while (j >= 0 && mPriorities[mOrder[j]] < mPriorities[c])
+			{
+				mOrder[j + 1] = mOrder[j];
+				j--;
+			}
+			mOrder[j + 1] = c;
+		}
+	}
+
+	private void place()
+	{
+		mColumns = Math.max(1, (mWidth + CELL_SIZE - 1) / CELL_SIZE);
+		mRows = Math.max(1, (mHeight + CELL_SIZE - 1) / CELL_SIZE);
+		int cells = mColumns * mRows;
+		if (mCellHead.length < cells)
+		{
+			mCellHead = new int[cells];
+		}
+		for (int c = 0; c < cells; c++)
+		{
+			mCellHead[c] = -1;
+		}
+		mEntries = 0;
+
+		for (int o = 0; o < mCount; o++)
+		{
+			int i = mOrder[o];
+			mPlaced[i] = false;
+			int area = mMap.mAreas.indexOfId(mIds[i]);
+			if (area < 0)
+			{
+				continue;
+			}
+			BubbleSpriteCache.Sprite sprite = mSprites[i];
+			float x = mMap.mAreas.getOriginX(area) * mResizeX;
+			float y = mMap.mAreas.getOriginY(area) * mResizeY;
+			float left = Math.max(0, Math.min(mWidth - sprite.width, x - (sprite.width / 2)));
+			// above the origin first, then below it, same as a single bubble
+			float top = y - sprite.height - 30;
+			if (top < 0 || collides(left, top, sprite))
+			{
+				top = y + 20;
+				if (collides(left, top, sprite))
+				{
+					continue;
+				}
+			}
+			mPlaced[i] = true;
+			mAnchorX[i] = x;
+			mAnchorY[i] = y;
+			mLeft[i] = left;
+			mTop[i] = top;
+			insert(i);
+		}
+	}
+
+	private boolean collides(float left, float top, BubbleSpriteCache.Sprite sprite)
+	{
+		float right = left + sprite.width + BubbleSpriteCache.SHADOW;
+		float bottom = top + sprite.height + BubbleSpriteCache.SHADOW;
+		int c0 = column(left);
+		int c1 = column(right);
+		int r0 = row(top);
+		int r1 = row(bottom);
+		for (int r = r0; r <= r1; r++)
+		{
+			for (int c = c0; c <= c1; c++)
+			{
+				for (int e = mCellHead[(r * mColumns) + c]; e >= 0; e = mEntryNext[e])
+				{
+					int j = mEntryLabel[e];
+					if ((left < mLeft[j] + mSprites[j].width + BubbleSpriteCache.SHADOW) && (right > mLeft[j])
+						&& (top < mTop[j] + mSprites[j].height + BubbleSpriteCache.SHADOW) && (bottom > mTop[j]))
+					{
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private void insert(int i)
+	{
+		BubbleSpriteCache.Sprite sprite = mSprites[i];
+		int c0 = column(mLeft[i]);
+		int c1 = column(mLeft[i] + sprite.width + BubbleSpriteCache.SHADOW);
+		int r0 = row(mTop[i]);
+		int r1 = row(mTop[i] + sprite.height + BubbleSpriteCache.SHADOW);
+		for (int r = r0; r <= r1; r++)
+		{
+			for (int c = c0; c <= c1; c++)
+			{
+				if (mEntries == mEntryNext.length)
+				{
+					int[] next = new int[mEntries * 2];
+					int[] label = new int[mEntries * 2];
+					System.arraycopy(mEntryNext, 0, next, 0, mEntries);
+					System.arraycopy(mEntryLabel, 0, label, 0, mEntries);
+					mEntryNext = next;
+					mEntryLabel = label;
+				}
+				int cell = (r * mColumns) + c;
+				mEntryLabel[mEntries] = i;
+				mEntryNext[mEntries] = mCellHead[cell];
+				mCellHead[cell] = mEntries;
+				mEntries++;
+			}
+		}
+	}
+
+	private int column(float x)
+	{
+		return Math.max(0, Math.min(mColumns - 1, (int) x / CELL_SIZE));
+	}
+
+	private int row(float y)
+	{
+		return Math.max(0, Math.min(mRows - 1, (int) y / CELL_SIZE));
+	}
+
+	private int indexOf(int areaId)
+	{
+		for (int i = 0; i < mCount; i++)
+		{
+			if (mIds[i] == areaId)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void ensureCapacity(int count)
+	{
+		if (mIds.length < count)
+		{
+			int size = Math.max(count, mIds.length * 2);
+			int[] ids = new int[size];
+			String[] texts = new String[size];
+			int[] priorities = new int[size];
+			BubbleSpriteCache.Sprite[] sprites = new BubbleSpriteCache.Sprite[size];
+			System.arraycopy(mIds, 0, ids, 0, mCount);
+			System.arraycopy(mTexts, 0, texts, 0, mCount);
+			System.arraycopy(mPriorities, 0, priorities, 0, mCount);
+			System.arraycopy(mSprites, 0, sprites, 0, mCount);
+			mIds = ids;
+			mTexts = texts;
+			mPriorities = priorities;
+			mSprites = sprites;
+			mPlaced = new boolean[size];
+			mAnchorX = new float[size];
+			mAnchorY = new float[size];
+			mLeft = new float[size];
+			mTop = new float[size];
+		}
+	}
+}
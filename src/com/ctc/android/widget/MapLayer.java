@@ -0,0 +1,209 @@
+package com.ctc.android.widget;
+
+import android.content.res.Resources;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * A further map from maps.xml shown over the image of an ImageMap, for
+ * example counties over states.  See ImageMap.addLayer.
+ *
+ * A layer has its own areas, hit testing grid and cache of outline paths.
+ * They are loaded off the UI thread the first time the layer is shown and
+ * released when it is hidden, so a hidden layer costs no memory and no draw
+ * or hit test time.  Taps go to the visible layers by descending priority,
+ * the areas of the view's own map having priority 0, and are reported with
+ * the layer to an ImageMap.OnLayerClickedHandler.  All methods must be
+ * called on the UI thread.
+ */
+public final class MapLayer
+{
+	private final ImageMap mMap;
+	private final String mMapName;
+	int mPriority;
+	boolean mVisible;
+	private int mFillColor;
+	private int mStrokeColor;
+
+	// the areas, null while hidden or loading
+	AreaStore mAreas;
+	private AreaGrid mGrid;
+	private AreaLod mLod;
+	private AreaPaths mPaths;
+	// changed by every show and hide, a load finishing for an older
+	// generation is dropped
+	private int mGeneration;
+
+	MapLayer(ImageMap map, String mapName, int priority)
+	{
+		mMap = map;
+		mMapName = mapName;
+		mPriority = priority;
+	}
+
+	public String getMapName()
+	{
+		return mMapName;
+	}
+
+	public int getPriority()
+	{
+		return mPriority;
+	}
+
+	/**
+	 * @param priority - layers of higher priority are hit tested first and
+	 *                   drawn on top, the view's own map has priority 0
+	 */
+	public void setPriority(int priority)
+	{
+		mPriority = priority;
+		mMap.onLayersChanged();
+	}
+
+	public boolean isVisible()
+	{
+		return mVisible;
+	}
+
+	/**
+	 * @return true once the areas of a visible layer are loaded
+	 */
+	public boolean isLoaded()
+	{
+		return mAreas != null;
+	}
+
+	/**
+	 * Show the layer, loading its areas, or hide it and release them
+	 * @param visible
+	 */
+	public void setVisible(boolean visible)
+	{
+		if (visible == mVisible)
+		{
+			return;
+		}
+		mVisible = visible;
+		mGeneration++;
+		if (visible)
+		{
+			load();
+		}
+		else
+		{
+			mAreas = null;
+			mGrid = null;
+			mLod = null;
+			mPaths = null;
+		}
+		mMap.onLayersChanged();
+	}
+
+	/**
+	 * @param fillColor - ARGB fill of every area, 0 for none
+	 * @param strokeColor - ARGB outline of every area, 0 for none
+	 */
+	public void setStyle(int fillColor, int strokeColor)
+	{
+		mFillColor = fillColor;
+		mStrokeColor = strokeColor;
+		if (mAreas != null)
+		{
+			mMap.invalidate();
+		}
+	}
+
+	/**
+	 * @return true if the layer is loaded and has an area with this id
+	 */
+	public boolean hasArea(int areaId)
+	{
+		return mAreas != null && mAreas.indexOfId(areaId) >= 0;
+	}
+
+	/*
+	 * parse the map and build the areas and grid in the background, then
+	 * hand them to the UI thread
+	 */
+	private void load()
+	{
+		final int generation = mGeneration;
+		final Resources res = mMap.getResources();
+		BackgroundExecutor.get().submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final AreaStore areas = new AreaStore();
+				areas.addModel(MapModel.get(res, mMapName));
+				final AreaGrid grid = new AreaGrid(areas);
+				ImageMap.sMainHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						onLoaded(generation, areas, grid);
+					}
+				});
+			}
+		});
+	}
+
+	void onLoaded(int generation, AreaStore areas, AreaGrid grid)
+	{
+		if (generation != mGeneration)
+		{
+			// hidden, or hidden and shown again, while loading
+			return;
+		}
+		mAreas = areas;
+		mGrid = grid;
+		mLod = new AreaLod(areas);
+		mPaths = new AreaPaths(areas, mLod);
+		mMap.invalidate();
+	}
+
+	/**
+	 * @return the id of the area at x, y in image coordinates, 0 if none
+	 */
+	int hitTest(float x, float y, int level)
+	{
+		if (mGrid == null)
+		{
+			return 0;
+		}
+		int index = mGrid.hitTest(x, y, mLod, level);
+		return index >= 0 ? mAreas.mIds[index] : 0;
+	}
+
+	/**
+	 * draw the areas within view at AreaLod level, on a canvas in image
+	 * coordinates
+	 * @return the number of areas drawn
+	 */
+	int draw(Canvas canvas, RectF view, int level, Paint fill, Paint stroke)
+	{
+		if (mAreas == null || (mFillColor == 0 && mStrokeColor == 0))
+		{
+			return 0;
+		}
+		fill.setColor(mFillColor);
+		stroke.setColor(mStrokeColor);
+		return mPaths.draw(canvas, view, level, mFillColor != 0 ? fill : null,
+			mStrokeColor != 0 ? stroke : null);
+	}
+
+	/**
+	 * drop the cached outlines, they are rebuilt as drawn
+	 */
+	void trimMemory()
+	{
+		if (mPaths != null)
+		{
+			mPaths.clear();
+			mLod.clear();
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.ctc.android.widget;
+
+import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The areas of one map from maps.xml, parsed once per process and shared
+ * by every ImageMap showing that map, so a recreated view does not parse
+ * the xml, the coordinates or resolve ids again.  Immutable once loaded.
+ *
+ * Only the geometry, names and ids are kept at first.  The other
+ * attributes are read from the xml again the first time one is asked for,
+ * most maps never need them.
+ */
+final class MapModel
+{
+	private static final HashMap<String, MapModel> sModels = new HashMap<String, MapModel>();
+
+	final int mCount;
+	final byte[] mShapes;
+	final String[] mNames;
+	final int[] mIds;
+	// parsed coordinates, area i owns mCoords[mCoordStart[i]] up to
+	// mCoords[mCoordStart[i + 1]], see AreaStore
+	final float[] mCoords;
+	final int[] mCoordStart;
+	// where to read the attributes from, see getAttributes
+	private final Resources mRes;
+	private final String mMap;
+	// every attribute of each area tag by area position, the original
+	// shape and coords text included, null until first asked for
+	private AreaAttributes mAttributes;
+
+	private MapModel(Resources res, String map, ArrayList<Byte> shapes, ArrayList<String> names,
+		ArrayList<Integer> ids, ArrayList<float[]> coords)
+	{
+		mRes = res;
+		mMap = map;
+		mCount = shapes.size();
+		mShapes = new byte[mCount];
+		mIds = new int[mCount];
+		mCoordStart = new int[mCount + 1];
+		for (int i = 0; i < mCount; i++)
+		{
+			mShapes[i] = shapes.get(i);
+			mIds[i] = ids.get(i);
+			mCoordStart[i + 1] = mCoordStart[i] + coords.get(i).length;
+		}
+		mNames = names.toArray(new String[mCount]);
+		mCoords = new float[mCoordStart[mCount]];
+		for (int i = 0; i < mCount; i++)
+		{
+			float[] c = coords.get(i);
+			System.arraycopy(c, 0, mCoords, mCoordStart[i], c.length);
+		}
+	}
+
+	/**
+	 * @return the attributes of the areas, read on first use
+	 */
+	synchronized AreaAttributes getAttributes()
+	{
+		if (mAttributes == null)
+		{
+			ArrayList<String[]> rows = new ArrayList<String[]>();
+			parse(mRes, mMap, null, null, null, null, null, rows);
+			mAttributes = AreaAttributes.build(rows, new HashMap<String, String>());
+		}
+		return mAttributes;
+	}
+
+	/**
+	 * @return the parsed map, loading it on first use
+	 */
+	static MapModel get(Resources res, String map)
+	{
+		synchronized (sModels)
+		{
+			MapModel model = sModels.get(map);
+			if (model == null)
+			{
+				model = load(res, map);
+				sModels.put(map, model);
+			}
+			return model;
+		}
+	}
+
+	/**
+	 * resolve an "@+id/name" attribute to the id in R.id, 0 if unknown
+	 */
+	static int resolveId(String id)
+	{
+		String rid = id.replace("@+id/", "");
+		try
+		{
+			Class<R.id> res = R.id.class;
+			Field field = res.getField(rid);
+			return field.getInt(null);
+		}
+		catch (Exception e)
+		{
+			return 0;
+		}
+	}
+
+	private static MapModel load(Resources res, String map)
+	{
+		ArrayList<Byte> shapes = new ArrayList<Byte>();
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		ArrayList<float[]> coordList = new ArrayList<float[]>();
+		// one instance of every distinct name
+		HashMap<String, String> pool = new HashMap<String, String>();
+		parse(res, map, shapes, names, ids, coordList, pool, null);
+		return new MapModel(res, map, shapes, names, ids, coordList);
+	}
+
+	/**
+	 * parse the maps.xml resource and pull out the areas: their geometry
+	 * into shapes, names, ids and coordList, or their attributes into
+	 * attributes, the others are null.  Both see the same areas in the
+	 * same order
+	 */
+	private static void parse(Resources res, String map, ArrayList<Byte> shapes,
+		ArrayList<String> names, ArrayList<Integer> ids, ArrayList<float[]> coordList,
+		HashMap<String, String> pool, ArrayList<String[]> attributes)
+	{
+		boolean loading = false;
+		try {
+			XmlResourceParser xpp = res.getXml(R.xml.maps);
+
+			int eventType = xpp.getEventType();
+			while (eventType != XmlPullParser.END_DOCUMENT) {
+				if(eventType == XmlPullParser.START_DOCUMENT) {
+					// Start document
+					//  This is a useful branch for a debug log if
+					//  parsing is not working
+				} else if(eventType == XmlPullParser.START_TAG) {
+					String tag = xpp.getName();
+
+					if (tag.equalsIgnoreCase("map")) {
+						String mapname = xpp.getAttributeValue(null, "name");
+						if (mapname !=null) {
+							if (mapname.equalsIgnoreCase(map)) {
+								loading=true;
+							}
+						}
+					}
+					if (loading) {
+						if (tag.equalsIgnoreCase("area")) {
+							String shape = xpp.getAttributeValue(null, "shape");
+							String coords = xpp.getAttributeValue(null, "coords");
+							String id = xpp.getAttributeValue(null, "id");
+
+							// as a name for this area, try to find any of these
+							// attributes
+							//  name attribute is custom to this impl (not standard in html area tag)
+							String name = xpp.getAttributeValue(null, "name");
+							if (name == null) {
+								name = xpp.getAttributeValue(null, "title");
+							}
+							if (name == null) {
+								name = xpp.getAttributeValue(null, "alt");
+							}
+
+							if ((shape != null) && (coords != null) && (id != null)) {
+								int _id = resolveId(id);
+								byte type = AreaStore.parseShape(shape);
+								if ((_id != 0) && (type >= 0)) {
+									if (attributes != null) {
+										// all area tag attributes, so that
+										// they are available to the
+										// implementation if needed (see getAreaAttribute)
+										String[] values = new String[xpp.getAttributeCount() * 2];
+										for (int i=0;i<xpp.getAttributeCount();i++) {
+											values[i * 2] = xpp.getAttributeName(i);
+											values[(i * 2) + 1] = xpp.getAttributeValue(i);
+										}
+										attributes.add(values);
+									} else {
+										shapes.add(type);
+										names.add(AreaAttributes.intern(pool, name));
+										ids.add(_id);
+										coordList.add(AreaStore.parseCoords(coords));
+									}
+								}
+							}
+						}
+					}
+				} else if(eventType == XmlPullParser.END_TAG) {
+					String tag = xpp.getName();
+					if (tag.equalsIgnoreCase("map")) {
+						loading = false;
+					}
+				}
+				eventType = xpp.next();
+			}
+		} catch (XmlPullParserException xppe) {
+			// Having trouble loading? Log this exception
+		} catch (IOException ioe) {
+			// Having trouble loading? Log this exception
+		}
+	}
+}
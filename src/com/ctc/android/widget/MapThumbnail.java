@@ -0,0 +1,122 @@
+package com.ctc.android.widget;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+
+/**
+ * An image with its map downsampled for one preview size, shared by every
+ * ImageMap showing that preview (see ImageMap.setThumbnail).  Keep the
+ * instance with the list item so binding a recycled view only hands it
+ * over.  Immutable; the bitmap must not be recycled by its users.
+ */
+public final class MapThumbnail
+{
+	private static LruCache<String, MapThumbnail> sCache;
+
+	final Bitmap mBitmap;
+	final MapModel mModel;
+	// size of the full image, the coordinate space of the areas
+	final int mImageWidth;
+	final int mImageHeight;
+
+	private MapThumbnail(Bitmap bitmap, MapModel model, int imageWidth, int imageHeight)
+	{
+		mBitmap = bitmap;
+		mModel = model;
+		mImageWidth = imageWidth;
+		mImageHeight = imageHeight;
+	}
+
+	/**
+	 * Get the preview of an image resource and map at width x height,
+	 * decoding it on first use.  May be called off the UI thread.
+	 * @param res
+	 * @param resId - the image
+	 * @param map - the map name in maps.xml, or null for no areas
+	 * @param width
+	 * @param height
+	 * @return the preview, or null if the image could not be decoded
+	 */
+	public static MapThumbnail get(Resources res, int resId, String map, int width, int height)
+	{
+		LruCache<String, MapThumbnail> cache = getCache();
+		String key = resId + "/" + map + "/" + width + "x" + height;
+		MapThumbnail thumbnail = cache.get(key);
+		if (thumbnail == null)
+		{
+			thumbnail = load(res, resId, map, width, height);
+			if (thumbnail != null)
+			{
+				cache.put(key, thumbnail);
+			}
+		}
+		return thumbnail;
+	}
+
+	private static synchronized LruCache<String, MapThumbnail> getCache()
+	{
+		if (sCache == null)
+		{
+			// sized in kilobytes, 1/16 of the heap
+			sCache = new LruCache<String, MapThumbnail>((int) (Runtime.getRuntime().maxMemory() / 1024 / 16))
+			{
+				@Override
+				protected int sizeOf(String key, MapThumbnail thumbnail)
+				{
+					Bitmap b = thumbnail.mBitmap;
+					return Math.max(1, b.getRowBytes() * b.getHeight() / 1024);
+				}
+			};
+		}
+		return sCache;
+	}
+
+	private static MapThumbnail load(Resources res, int resId, String map, int width, int height)
+	{
+		Tracing.begin("MapThumbnail#load");
+		try
+		{
+			BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeResource(res, resId, options);
+			int imageWidth = options.outWidth;
+			int imageHeight = options.outHeight;
+			if ((imageWidth <= 0) || (imageHeight <= 0) || (width <= 0) || (height <= 0))
+			{
+				return null;
+			}
+
+			// decode at the largest power of 2 reduction still at least
+			// the preview size, then scale the rest of the way
+			int sampleSize = 1;
+			while ((imageWidth / (sampleSize * 2) >= width) && (imageHeight / (sampleSize * 2) >= height))
+			{
+				sampleSize *= 2;
+			}
+			options.inJustDecodeBounds = false;
+			options.inSampleSize = sampleSize;
+			Bitmap decoded = BitmapFactory.decodeResource(res, resId, options);
+			if (decoded == null)
+			{
+				return null;
+			}
+			Bitmap bitmap = decoded;
+			if ((decoded.getWidth() != width) || (decoded.getHeight() != height))
+			{
+				bitmap = MemoryBudget.createScaledBitmap(decoded, width, height);
+				if (bitmap != decoded)
+				{
+					decoded.recycle();
+				}
+			}
+			MapModel model = map != null ? MapModel.get(res, map) : null;
+			return new MapThumbnail(bitmap, model, imageWidth, imageHeight);
+		}
+		finally
+		{
+			Tracing.end();
+		}
+	}
+}
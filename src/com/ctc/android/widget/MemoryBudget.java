@@ -0,0 +1,108 @@
+package com.ctc.android.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Debug;
+
+/**
+ * Works out how large a zoomed bitmap can get from the memory that is
+ * actually free, instead of a fixed multiplier, and creates scaled bitmaps
+ * in the cheapest config that keeps the image intact.
+ */
+final class MemoryBudget
+{
+	// share of the free heap a single zoomed bitmap may take, the rest is
+	// left for the previous bitmap (alive until the swap) and the app
+	private static final float HEAP_SHARE = 0.4f;
+
+	private MemoryBudget()
+	{
+	}
+
+	/**
+	 * @return bytes that can still be allocated before the heap limit.
+	 *         Before API 11 bitmap pixels live in the native heap but count
+	 *         against the same limit, so all of the native heap in use is
+	 *         taken off, which also counts native memory that is not
+	 *         bitmaps and errs on the low side
+	 */
+	static long getAvailableBytes()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+		{
+			used += Debug.getNativeHeapAllocatedSize();
+		}
+		return Math.max(0, runtime.maxMemory() - used);
+	}
+
+	static int getBytesPerPixel(Bitmap.Config config)
+	{
+		if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+		{
+			return 2;
+		}
+		if (config == Bitmap.Config.ALPHA_8)
+		{
+			return 1;
+		}
+		return 4;
+	}
+
+	/**
+	 * opaque images take half the memory in RGB_565, at the cost of colour
+	 * depth: gradients band, which dithering while scaling mostly hides
+	 */
+	static Bitmap.Config chooseConfig(Bitmap source)
+	{
+		return source.hasAlpha() ? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+	}
+
+	/**
+	 * @return how many pixels a new bitmap of this config may have now
+	 */
+	static long getMaxPixels(Bitmap.Config config)
+	{
+		return (long) (getAvailableBytes() * HEAP_SHARE) / getBytesPerPixel(config);
+	}
+
+	/**
+	 * Scale source to width x height with filtering, in RGB_565 when the
+	 * source has no alpha, dithered when that drops colour depth.  A
+	 * pooled bitmap of that size is drawn into if
+	 * there is one, see BitmapPool.  Safe to call from any thread.
+	 * @throws OutOfMemoryError when the bitmap cannot be allocated
+	 */
+	static Bitmap createScaledBitmap(Bitmap source, int width, int height)
+	{
+		Bitmap.Config config = chooseConfig(source);
+		Bitmap scaled = BitmapPool.get(width, height, config);
+		if (scaled != null)
+		{
+			if (scaled.hasAlpha())
+			{
+				scaled.eraseColor(0);
+			}
+		}
+		else if (config == source.getConfig())
+		{
+			return Bitmap.createScaledBitmap(source, width, height, true);
+		}
+		else
+		{
+			scaled = Bitmap.createBitmap(width, height, config);
+		}
+		int flags = Paint.FILTER_BITMAP_FLAG;
+		if ((config == Bitmap.Config.RGB_565) && (source.getConfig() != Bitmap.Config.RGB_565))
+		{
+			flags |= Paint.DITHER_FLAG;
+		}
+		Canvas canvas = new Canvas(scaled);
+		canvas.drawBitmap(source, null, new Rect(0, 0, width, height), new Paint(flags));
+		return scaled;
+	}
+}
@@ -0,0 +1,91 @@
+package com.ctc.android.widget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A Tracer that keeps section timings in memory instead of sending them to
+ * systrace, so that performance budgets can be asserted without a device:
+ *
+ *   RecordingTracer tracer = new RecordingTracer();
+ *   Tracing.setTracer(tracer);
+ *   ... exercise the map ...
+ *   assertTrue(tracer.getMaxNanos("ImageMap#onDraw") < 8000000);
+ */
+public class RecordingTracer implements Tracer
+{
+	private final ThreadLocal<ArrayList<Object[]>> mOpen = new ThreadLocal<ArrayList<Object[]>>()
+	{
+		@Override
+		protected ArrayList<Object[]> initialValue()
+		{
+			return new ArrayList<Object[]>();
+		}
+	};
+
+	// name -> { count, total nanos, max nanos }
+	private final HashMap<String, long[]> mSections = new HashMap<String, long[]>();
+
+	@Override
+	public void beginSection(String name)
+	{
+		mOpen.get().add(new Object[] { name, System.nanoTime() });
+	}
+
+	@Override
+	public void endSection()
+	{
+		long now = System.nanoTime();
+		ArrayList<Object[]> open = mOpen.get();
+		if (open.isEmpty())
+		{
+			return;
+		}
+		Object[] section = open.remove(open.size() - 1);
+		long duration = now - (Long) section[1];
+		synchronized (mSections)
+		{
+			long[] s = mSections.get(section[0]);
+			if (s == null)
+			{
+				s = new long[3];
+				mSections.put((String) section[0], s);
+			}
+			s[0]++;
+			s[1] += duration;
+			s[2] = Math.max(s[2], duration);
+		}
+	}
+
+	public int getCount(String name)
+	{
+		return (int) get(name, 0);
+	}
+
+	public long getTotalNanos(String name)
+	{
+		return get(name, 1);
+	}
+
+	public long getMaxNanos(String name)
+	{
+		return get(name, 2);
+	}
+
+	public void clear()
+	{
+		synchronized (mSections)
+		{
+			mSections.clear();
+		}
+	}
+
+	private long get(String name, int field)
+	{
+		synchronized (mSections)
+		{
+			long[] s = mSections.get(name);
+			return s == null ? 0 : s[field];
+		}
+	}
+}
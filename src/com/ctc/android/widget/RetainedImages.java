@@ -0,0 +1,57 @@
+package com.ctc.android.widget;
+
+import android.graphics.Bitmap;
+
+import java.util.WeakHashMap;
+
+/**
+ * Scaled bitmaps handed from a view that saves its state to the view that
+ * replaces it after a configuration change, keyed by the original bitmap
+ * they were scaled from (see BitmapHelper).  The new view shows the
+ * retained bitmap stretched straight away instead of scaling again before
+ * its first frame.  Only retained while the activity is changing
+ * configurations, see ImageMap.onSaveInstanceState.
+ */
+final class RetainedImages
+{
+	// weak keys: an entry goes away with its original
+	private static final WeakHashMap<Bitmap, Bitmap> sScaled = new WeakHashMap<Bitmap, Bitmap>();
+	// the values of sScaled, for isRetained
+	private static final WeakHashMap<Bitmap, Boolean> sRetained = new WeakHashMap<Bitmap, Boolean>();
+
+	private RetainedImages()
+	{
+	}
+
+	static void retain(Bitmap original, Bitmap scaled)
+	{
+		Bitmap previous = sScaled.put(original, scaled);
+		if (previous != null)
+		{
+			sRetained.remove(previous);
+		}
+		sRetained.put(scaled, Boolean.TRUE);
+	}
+
+	/**
+	 * @return the bitmap retained for original, no longer retained
+	 */
+	static Bitmap take(Bitmap original)
+	{
+		Bitmap scaled = sScaled.remove(original);
+		if (scaled != null)
+		{
+			sRetained.remove(scaled);
+		}
+		return scaled;
+	}
+
+	/**
+	 * a retained bitmap may still be taken by another view and must not
+	 * be recycled by the one that retained it
+	 */
+	static boolean isRetained(Bitmap scaled)
+	{
+		return sRetained.containsKey(scaled);
+	}
+}
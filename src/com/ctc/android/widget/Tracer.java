@@ -0,0 +1,16 @@
+package com.ctc.android.widget;
+
+/**
+ * Receives the named trace sections emitted by ImageMap and BitmapHelper.
+ *
+ * Sections nest and are always ended on the thread that began them.  The
+ * default implementation forwards to android.os.Trace so the sections show
+ * up in systrace/Perfetto; install another one with Tracing.setTracer, for
+ * example a RecordingTracer to check time budgets in tests.
+ */
+public interface Tracer
+{
+	void beginSection(String name);
+
+	void endSection();
+}
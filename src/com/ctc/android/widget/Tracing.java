@@ -0,0 +1,77 @@
+package com.ctc.android.widget;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Holds the process-wide Tracer used by the widget.
+ */
+public final class Tracing
+{
+	private static volatile Tracer sTracer = createDefault();
+
+	private Tracing()
+	{
+	}
+
+	/**
+	 * @param tracer - null restores the android.os.Trace tracer
+	 */
+	public static void setTracer(Tracer tracer)
+	{
+		sTracer = tracer != null ? tracer : createDefault();
+	}
+
+	public static Tracer getTracer()
+	{
+		return sTracer;
+	}
+
+	static void begin(String name)
+	{
+		sTracer.beginSection(name);
+	}
+
+	static void end()
+	{
+		sTracer.endSection();
+	}
+
+	private static Tracer createDefault()
+	{
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+		{
+			return new SystemTracer();
+		}
+		return new Tracer()
+		{
+			@Override
+			public void beginSection(String name)
+			{
+			}
+
+			@Override
+			public void endSection()
+			{
+			}
+		};
+	}
+
+	/*
+	 * android.os.Trace is only available on API 18 and up
+	 */
+	private static class SystemTracer implements Tracer
+	{
+		@Override
+		public void beginSection(String name)
+		{
+			Trace.beginSection(name);
+		}
+
+		@Override
+		public void endSection()
+		{
+			Trace.endSection();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2011 Scott Lund
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ctc.android.widget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Heap retained by a large map in AreaStore and in the per-area objects it
+ * replaced, measured on the device the tests run on.
+ *
+ * Both hold the same areas without attributes, a third each rectangles,
+ * circles and 8 point polygons.  Each figure is the used heap after a
+ * collection with and without the areas, so run the test on its own in a
+ * fresh process, the collector is not obliged to free everything.
+ */
+public class AreaHeapTest extends AndroidTestCase
+{
+	private static final String TAG = "AreaHeapTest";
+	private static final int COUNT = 100000;
+
+	private static final float[] RECT = { 10, 10, 40, 30 };
+	private static final float[] CIRCLE = { 25, 25, 15 };
+	private static final float[] POLY = { 10, 10, 30, 5, 50, 10, 55, 30, 50, 50, 30, 55, 10, 50, 5, 30 };
+
+	public void testAreaStoreRetainsLessThanAreaObjects()
+	{
+		long before = usedHeap();
+		LegacyAreas legacy = buildLegacy(COUNT);
+		long legacyBytes = usedHeap() - before;
+		assertEquals(COUNT, legacy.mAreaList.size());
+		legacy = null;
+
+		before = usedHeap();
+		AreaStore store = buildStore(COUNT);
+		long storeBytes = usedHeap() - before;
+		assertEquals(COUNT, store.size());
+		store = null;
+
+		Log.i(TAG, COUNT + " areas: objects " + legacyBytes + " bytes (" + (legacyBytes / COUNT)
+			+ " per area), AreaStore " + storeBytes + " bytes (" + (storeBytes / COUNT) + " per area)");
+		assertTrue("AreaStore " + storeBytes + " >= objects " + legacyBytes, storeBytes < legacyBytes);
+	}
+
+	/*
+	 * coordinates are moved per area so that most of them are beyond the
+	 * small boxed Integers the VM shares, as in a real map
+	 */
+	private static float shift(int i)
+	{
+		return 200 + (i % 1000);
+	}
+
+	private static AreaStore buildStore(int count)
+	{
+		AreaStore areas = new AreaStore();
+		float[] coords = new float[POLY.length];
+		for (int i = 0; i < count; i++)
+		{
+			float[] shape = (i % 3 == 0) ? RECT : (i % 3 == 1) ? CIRCLE : POLY;
+			for (int c = 0; c < shape.length; c++)
+			{
+				// a circle's radius stays put
+				coords[c] = (shape == CIRCLE && c == 2) ? shape[c] : shape[c] + shift(i);
+			}
+			byte type = (shape == RECT) ? AreaStore.SHAPE_RECT
+				: (shape == CIRCLE) ? AreaStore.SHAPE_CIRCLE : AreaStore.SHAPE_POLY;
+			areas.add(type, i + 1, null, coords, 0, shape.length);
+		}
+		return areas;
+	}
+
+	private static LegacyAreas buildLegacy(int count)
+	{
+		LegacyAreas areas = new LegacyAreas();
+		for (int i = 0; i < count; i++)
+		{
+			float d = shift(i);
+			LegacyAreas.Area a;
+			if (i % 3 == 0)
+			{
+				a = areas.new RectArea(i + 1, RECT[0] + d, RECT[1] + d, RECT[2] + d, RECT[3] + d);
+			}
+			else if (i % 3 == 1)
+			{
+				a = areas.new CircleArea(i + 1, CIRCLE[0] + d, CIRCLE[1] + d, CIRCLE[2]);
+			}
+			else
+			{
+				a = areas.new PolyArea(i + 1, POLY, (int) d);
+			}
+			areas.mAreaList.add(a);
+			areas.mIdToArea.put(a._id, a);
+		}
+		return areas;
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+		{
+			System.gc();
+			System.runFinalization();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * The fields of the Area classes ImageMap kept before AreaStore, inner
+	 * classes so that each area holds its outer reference as they did
+	 */
+	static class LegacyAreas
+	{
+		ArrayList<Area> mAreaList = new ArrayList<Area>();
+		SparseArray<Area> mIdToArea = new SparseArray<Area>();
+
+		abstract class Area
+		{
+			int _id;
+			String _name;
+			HashMap<String, String> _values;
+			Bitmap _decoration = null;
+
+			Area(int id)
+			{
+				_id = id;
+			}
+		}
+
+		class RectArea extends Area
+		{
+			float _left;
+			float _top;
+			float _right;
+			float _bottom;
+
+			RectArea(int id, float left, float top, float right, float bottom)
+			{
+				super(id);
+				_left = left;
+				_top = top;
+				_right = right;
+				_bottom = bottom;
+			}
+		}
+
+		class CircleArea extends Area
+		{
+			float _x;
+			float _y;
+			float _radius;
+
+			CircleArea(int id, float x, float y, float radius)
+			{
+				super(id);
+				_x = x;
+				_y = y;
+				_radius = radius;
+			}
+		}
+
+		class PolyArea extends Area
+		{
+			ArrayList<Integer> xpoints = new ArrayList<Integer>();
+			ArrayList<Integer> ypoints = new ArrayList<Integer>();
+			float _x;
+			float _y;
+			int _points;
+			int top = -1;
+			int bottom = -1;
+			int left = -1;
+			int right = -1;
+
+			PolyArea(int id, float[] coords, int shift)
+			{
+				super(id);
+				for (int i = 0; i + 1 < coords.length; i += 2)
+				{
+					int x = (int) coords[i] + shift;
+					int y = (int) coords[i + 1] + shift;
+					xpoints.add(x);
+					ypoints.add(y);
+					top = (top == -1) ? y : Math.min(top, y);
+					bottom = (bottom == -1) ? y : Math.max(bottom, y);
+					left = (left == -1) ? x : Math.min(left, x);
+					right = (right == -1) ? x : Math.max(right, x);
+				}
+				_points = xpoints.size();
+				// the closing point the old class added
+				xpoints.add(xpoints.get(0));
+				ypoints.add(ypoints.get(0));
+				_x = (left + right) / 2f;
+				_y = (top + bottom) / 2f;
+			}
+		}
+	}
+}